@@ -44,6 +44,24 @@ class BleManager  {
     });
   }
 
+  transaction(peripheralId, operations) {
+    return new Promise((fulfill, reject) => {
+      operations = operations.map((operation) => {
+        if (typeof operation.data === 'string') {
+          return Object.assign({}, operation, { data: [operation.data] });
+        }
+        return operation;
+      });
+      bleManager.transaction(peripheralId, operations, (error, results) => {
+        if (error) {
+          reject(error);
+        } else {
+          fulfill(results);
+        }
+      });
+    });
+  }
+
   retrieveServices(peripheralId) {
     return new Promise((fulfill, reject) => {
       bleManager.retrieveServices(peripheralId, (error, peripheral) => {
@@ -57,8 +75,12 @@ class BleManager  {
   }
 
   write(peripheralId, serviceUUID, characteristicUUID, data, maxByteSize) {
+    if (typeof data === 'string') {
+      data = [data];
+    }
     if (maxByteSize == null) {
-      maxByteSize = 20;
+      // on Android 0 uses the MTU of the connection
+      maxByteSize = React.Platform.OS === 'android' ? 0 : 20;
     }
     return new Promise((fulfill, reject) => {
       bleManager.write(peripheralId, serviceUUID, characteristicUUID, data, maxByteSize, (error) => {
@@ -72,8 +94,12 @@ class BleManager  {
   }
 
   writeWithoutResponse(peripheralId, serviceUUID, characteristicUUID, data, maxByteSize, queueSleepTime) {
+    if (typeof data === 'string') {
+      data = [data];
+    }
     if (maxByteSize == null) {
-      maxByteSize = 20;
+      // on Android 0 uses the MTU of the connection
+      maxByteSize = React.Platform.OS === 'android' ? 0 : 20;
     }
     if (queueSleepTime == null) {
       queueSleepTime = 10;
@@ -90,8 +116,12 @@ class BleManager  {
   }
 
   writeDescriptor(peripheralId, serviceUUID, characteristicUUID, descriptorUUID, data, maxByteSize, queueSleepTime) {
+    if (typeof data === 'string') {
+      data = [data];
+    }
     if (maxByteSize == null) {
-      maxByteSize = 20;
+      // on Android 0 uses the MTU of the connection
+      maxByteSize = React.Platform.OS === 'android' ? 0 : 20;
     }
     if (queueSleepTime == null) {
       queueSleepTime = 10;
@@ -107,15 +137,20 @@ class BleManager  {
     });
   }
 
-  connect(peripheralId) {
+  connect(peripheralId, options) {
     return new Promise((fulfill, reject) => {
-      bleManager.connect(peripheralId, (error) => {
+      const callback = (error) => {
         if (error) {
           reject(error);
         } else {
           fulfill();
         }
-      });
+      };
+      if (options != null && React.Platform.OS === 'android') {
+        bleManager.connectWithOptions(peripheralId, options, callback);
+      } else {
+        bleManager.connect(peripheralId, callback);
+      }
     });
   }
 
@@ -155,15 +190,25 @@ class BleManager  {
     });
   }
 
-  startNotification(peripheralId, serviceUUID, characteristicUUID) {
+  startNotification(peripheralId, serviceUUID, characteristicUUID, options) {
     return new Promise((fulfill, reject) => {
-      bleManager.startNotification(peripheralId, serviceUUID, characteristicUUID, (error) => {
+      const callback = (error) => {
         if (error) {
           reject(error);
         } else {
           fulfill();
         }
-      });
+      };
+      if (options != null && React.Platform.OS === 'android') {
+        if (options.framing && typeof options.framing.delimiter === 'string') {
+          // an encoded delimiter, decoded natively like the written data
+          const framing = Object.assign({}, options.framing, { delimiter: [options.framing.delimiter] });
+          options = Object.assign({}, options, { framing: framing });
+        }
+        bleManager.startNotificationWithOptions(peripheralId, serviceUUID, characteristicUUID, options, callback);
+      } else {
+        bleManager.startNotification(peripheralId, serviceUUID, characteristicUUID, callback);
+      }
     });
   }
 
@@ -179,6 +224,12 @@ class BleManager  {
     });
   }
 
+  ackNotification(peripheralId, serviceUUID, characteristicUUID) {
+    if (React.Platform.OS === 'android') {
+      bleManager.ackNotification(peripheralId, serviceUUID, characteristicUUID);
+    }
+  }
+
   checkState() {
     bleManager.checkState();
   }
@@ -286,6 +337,30 @@ class BleManager  {
     });
   }
 
+  getScanMetrics() {
+    return new Promise((fulfill, reject) => {
+      bleManager.getScanMetrics((error, result) => {
+        if (error) {
+          reject(error);
+        } else {
+          fulfill(result);
+        }
+      });
+    });
+  }
+
+  getConnectionMetrics() {
+    return new Promise((fulfill, reject) => {
+      bleManager.getConnectionMetrics((error, result) => {
+        if (error) {
+          reject(error);
+        } else {
+          fulfill(result);
+        }
+      });
+    });
+  }
+
   getDiscoveredPeripherals() {
     return new Promise((fulfill, reject) => {
       bleManager.getDiscoveredPeripherals((error, result) => {
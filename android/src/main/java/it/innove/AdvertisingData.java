@@ -0,0 +1,217 @@
+package it.innove;
+
+import android.util.SparseArray;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * AdvertisingData parses the AD structures of a raw advertising payload.
+ * It works on every API level and the payload is parsed once, the getters do not allocate.
+ */
+public class AdvertisingData {
+
+	private static final int TYPE_FLAGS = 0x01;
+	private static final int TYPE_UUID16_INCOMPLETE = 0x02;
+	private static final int TYPE_UUID16 = 0x03;
+	private static final int TYPE_UUID32_INCOMPLETE = 0x04;
+	private static final int TYPE_UUID32 = 0x05;
+	private static final int TYPE_UUID128_INCOMPLETE = 0x06;
+	private static final int TYPE_UUID128 = 0x07;
+	private static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+	private static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+	private static final int TYPE_TX_POWER_LEVEL = 0x0A;
+	private static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+	private static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+	private static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+	private static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+	// 0000xxxx-0000-1000-8000-00805f9b34fb
+	private static final long BASE_UUID_MSB = 0x0000000000001000L;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] bytes;
+	private int flags = -1;
+	private int txPowerLevel = Integer.MIN_VALUE;
+	private String localName;
+	private List<UUID> serviceUuids;
+	private Map<UUID, byte[]> serviceData;
+	private SparseArray<byte[]> manufacturerData;
+	private Beacon beacon;
+	private boolean beaconParsed = false;
+
+	private AdvertisingData(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	public static AdvertisingData parse(byte[] bytes) {
+		AdvertisingData data = new AdvertisingData(bytes);
+		if (bytes == null) {
+			return data;
+		}
+
+		int position = 0;
+		while (position < bytes.length) {
+			int length = bytes[position] & 0xFF;
+			// a zero length marks the end of the significant part, a truncated structure is ignored
+			if (length == 0 || position + length >= bytes.length) {
+				break;
+			}
+			int type = bytes[position + 1] & 0xFF;
+			int start = position + 2;
+			int dataLength = length - 1;
+
+			switch (type) {
+				case TYPE_FLAGS:
+					if (dataLength > 0) {
+						data.flags = bytes[start] & 0xFF;
+					}
+					break;
+				case TYPE_UUID16_INCOMPLETE:
+				case TYPE_UUID16:
+					for (int i = 0; i + 2 <= dataLength; i += 2) {
+						data.addServiceUuid(shortUuid(readUnsigned(bytes, start + i, 2)));
+					}
+					break;
+				case TYPE_UUID32_INCOMPLETE:
+				case TYPE_UUID32:
+					for (int i = 0; i + 4 <= dataLength; i += 4) {
+						data.addServiceUuid(shortUuid(readUnsigned(bytes, start + i, 4)));
+					}
+					break;
+				case TYPE_UUID128_INCOMPLETE:
+				case TYPE_UUID128:
+					for (int i = 0; i + 16 <= dataLength; i += 16) {
+						data.addServiceUuid(longUuid(bytes, start + i));
+					}
+					break;
+				case TYPE_LOCAL_NAME_SHORT:
+				case TYPE_LOCAL_NAME_COMPLETE:
+					if (data.localName == null || type == TYPE_LOCAL_NAME_COMPLETE) {
+						data.localName = new String(bytes, start, dataLength, UTF8);
+					}
+					break;
+				case TYPE_TX_POWER_LEVEL:
+					if (dataLength > 0) {
+						data.txPowerLevel = bytes[start];
+					}
+					break;
+				case TYPE_SERVICE_DATA_UUID16:
+					if (dataLength >= 2) {
+						data.addServiceData(shortUuid(readUnsigned(bytes, start, 2)), Arrays.copyOfRange(bytes, start + 2, start + dataLength));
+					}
+					break;
+				case TYPE_SERVICE_DATA_UUID32:
+					if (dataLength >= 4) {
+						data.addServiceData(shortUuid(readUnsigned(bytes, start, 4)), Arrays.copyOfRange(bytes, start + 4, start + dataLength));
+					}
+					break;
+				case TYPE_SERVICE_DATA_UUID128:
+					if (dataLength >= 16) {
+						data.addServiceData(longUuid(bytes, start), Arrays.copyOfRange(bytes, start + 16, start + dataLength));
+					}
+					break;
+				case TYPE_MANUFACTURER_SPECIFIC_DATA:
+					if (dataLength >= 2) {
+						if (data.manufacturerData == null) {
+							data.manufacturerData = new SparseArray<>(1);
+						}
+						data.manufacturerData.put((int) readUnsigned(bytes, start, 2), Arrays.copyOfRange(bytes, start + 2, start + dataLength));
+					}
+					break;
+				default:
+					break;
+			}
+			position += length + 1;
+		}
+		return data;
+	}
+
+	// little endian
+	private static long readUnsigned(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for (int i = length - 1; i >= 0; i--) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static UUID shortUuid(long value) {
+		return new UUID(BASE_UUID_MSB | (value << 32), BASE_UUID_LSB);
+	}
+
+	// 128 bit UUIDs are advertised in little endian order
+	private static UUID longUuid(byte[] bytes, int offset) {
+		long lsb = readUnsigned(bytes, offset, 8);
+		long msb = readUnsigned(bytes, offset + 8, 8);
+		return new UUID(msb, lsb);
+	}
+
+	private void addServiceUuid(UUID uuid) {
+		if (serviceUuids == null) {
+			serviceUuids = new ArrayList<>(2);
+		}
+		serviceUuids.add(uuid);
+	}
+
+	private void addServiceData(UUID uuid, byte[] value) {
+		if (serviceData == null) {
+			serviceData = new LinkedHashMap<>(2);
+		}
+		serviceData.put(uuid, value);
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	// the discoverability and BR/EDR bits of the Flags structure, -1 when not advertised
+	public int getFlags() {
+		return flags;
+	}
+
+	public int getTxPowerLevel() {
+		return txPowerLevel;
+	}
+
+	public String getLocalName() {
+		return localName;
+	}
+
+	public List<UUID> getServiceUuids() {
+		return serviceUuids != null ? serviceUuids : Collections.<UUID>emptyList();
+	}
+
+	public Map<UUID, byte[]> getServiceData() {
+		return serviceData != null ? serviceData : Collections.<UUID, byte[]>emptyMap();
+	}
+
+	public byte[] getServiceData(UUID uuid) {
+		return serviceData != null ? serviceData.get(uuid) : null;
+	}
+
+	public byte[] getManufacturerData(int manufacturerId) {
+		return manufacturerData != null ? manufacturerData.get(manufacturerId) : null;
+	}
+
+	public SparseArray<byte[]> getManufacturerData() {
+		return manufacturerData;
+	}
+
+	// decoded on first use, null when the payload is not a beacon
+	public Beacon getBeacon() {
+		if (!beaconParsed) {
+			beacon = Beacon.parse(this);
+			beaconParsed = true;
+		}
+		return beacon;
+	}
+}
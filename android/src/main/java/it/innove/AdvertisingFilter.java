@@ -0,0 +1,174 @@
+package it.innove;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanFilter;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * AdvertisingFilter holds the advertising filters of a scan.
+ * What the controller can match is pushed into the hardware ScanFilters, everything is checked again here
+ * before the peripheral is added to the registry.
+ */
+class AdvertisingFilter {
+
+	private List<UUID> serviceUUIDs = new ArrayList<>();
+	private int manufacturerId = -1;
+	private byte[] manufacturerData;
+	private byte[] manufacturerDataMask;
+	private UUID serviceDataUUID;
+	private byte[] serviceData;
+	private String namePrefix;
+	private Pattern namePattern;
+	private Integer rssiThreshold;
+
+	// throws IllegalArgumentException if a filter is invalid
+	static AdvertisingFilter fromOptions(ReadableArray serviceUUIDs, ReadableMap options) {
+		AdvertisingFilter filter = new AdvertisingFilter();
+
+		for (int i = 0; i < serviceUUIDs.size(); i++) {
+			filter.serviceUUIDs.add(UUIDHelper.uuidFromString(serviceUUIDs.getString(i)));
+		}
+
+		if (options.hasKey("manufacturerId")) {
+			filter.manufacturerId = options.getInt("manufacturerId");
+		}
+		if (options.hasKey("manufacturerData")) {
+			filter.manufacturerData = toBytes(options.getArray("manufacturerData"));
+		}
+		if (options.hasKey("manufacturerDataMask")) {
+			filter.manufacturerDataMask = toBytes(options.getArray("manufacturerDataMask"));
+			// the controller only accepts a mask of the size of the data, both filters must agree
+			int dataLength = filter.manufacturerData != null ? filter.manufacturerData.length : 0;
+			if (filter.manufacturerDataMask.length != dataLength) {
+				throw new IllegalArgumentException("manufacturerDataMask must have the length of manufacturerData");
+			}
+		}
+		if (options.hasKey("serviceDataUUID")) {
+			filter.serviceDataUUID = UUIDHelper.uuidFromString(options.getString("serviceDataUUID"));
+		}
+		if (options.hasKey("serviceData")) {
+			filter.serviceData = toBytes(options.getArray("serviceData"));
+		}
+		if (options.hasKey("namePrefix")) {
+			filter.namePrefix = options.getString("namePrefix");
+		}
+		if (options.hasKey("nameRegex")) {
+			try {
+				filter.namePattern = Pattern.compile(options.getString("nameRegex"));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid nameRegex: " + e.getMessage());
+			}
+		}
+		if (options.hasKey("rssiThreshold")) {
+			filter.rssiThreshold = options.getInt("rssiThreshold");
+		}
+		return filter;
+	}
+
+	private static byte[] toBytes(ReadableArray array) {
+		byte[] bytes = new byte[array.size()];
+		for (int i = 0; i < array.size(); i++) {
+			bytes[i] = (byte) array.getInt(i);
+		}
+		return bytes;
+	}
+
+	boolean hasAdvertisingDataFilter() {
+		return manufacturerId >= 0 || serviceDataUUID != null;
+	}
+
+	// Add the filters the controller can evaluate, one ScanFilter for each service UUID
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	void buildScanFilters(List<ScanFilter> filters) {
+		if (serviceUUIDs.isEmpty()) {
+			if (hasAdvertisingDataFilter()) {
+				filters.add(newScanFilterBuilder().build());
+			}
+			return;
+		}
+
+		for (UUID serviceUUID : serviceUUIDs) {
+			filters.add(newScanFilterBuilder().setServiceUuid(new ParcelUuid(serviceUUID)).build());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private ScanFilter.Builder newScanFilterBuilder() {
+		ScanFilter.Builder builder = new ScanFilter.Builder();
+		if (manufacturerId >= 0) {
+			byte[] data = manufacturerData != null ? manufacturerData : new byte[0];
+			if (manufacturerDataMask != null) {
+				builder.setManufacturerData(manufacturerId, data, manufacturerDataMask);
+			} else {
+				builder.setManufacturerData(manufacturerId, data);
+			}
+		}
+		if (serviceDataUUID != null) {
+			builder.setServiceData(new ParcelUuid(serviceDataUUID), serviceData != null ? serviceData : new byte[0]);
+		}
+		return builder;
+	}
+
+	boolean matches(String name, int rssi, AdvertisingData advertisingData) {
+		if (advertisingData.getLocalName() != null) {
+			name = advertisingData.getLocalName();
+		}
+		if (!matches(name, rssi)) {
+			return false;
+		}
+
+		if (!serviceUUIDs.isEmpty() && Collections.disjoint(serviceUUIDs, advertisingData.getServiceUuids())) {
+			return false;
+		}
+		if (manufacturerId >= 0 && !matchesPrefix(advertisingData.getManufacturerData(manufacturerId), manufacturerData, manufacturerDataMask)) {
+			return false;
+		}
+		if (serviceDataUUID != null && !matchesPrefix(advertisingData.getServiceData(serviceDataUUID), serviceData, null)) {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean matches(String name, int rssi) {
+		if (rssiThreshold != null && rssi < rssiThreshold) {
+			return false;
+		}
+		if (namePrefix != null && (name == null || !name.startsWith(namePrefix))) {
+			return false;
+		}
+		if (namePattern != null && (name == null || !namePattern.matcher(name).matches())) {
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean matchesPrefix(byte[] data, byte[] prefix, byte[] mask) {
+		if (data == null) {
+			return false;
+		}
+		if (prefix == null) {
+			return true;
+		}
+		if (data.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			int m = mask != null ? mask[i] : 0xFF;
+			if ((data[i] & m) != (prefix[i] & m)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,142 @@
+package it.innove;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * AttributeIndex resolves the characteristics and descriptors of the discovered services without scanning them.
+ * It is built once per service discovery and keeps, for each UUID, the best match of every operation.
+ */
+class AttributeIndex {
+
+	// the index before the services are discovered
+	static final AttributeIndex EMPTY = new AttributeIndex(Collections.<BluetoothGattService>emptyList());
+
+	// the first service with a UUID, like BluetoothGatt.getService
+	private final Map<UUID, Map<UUID, Entry>> services = new HashMap<>();
+
+	AttributeIndex(List<BluetoothGattService> gattServices) {
+		for (BluetoothGattService service : gattServices) {
+			if (services.containsKey(service.getUuid())) {
+				continue;
+			}
+			Map<UUID, Entry> entries = new HashMap<>();
+			// Some peripherals re-use UUIDs for multiple characteristics so the properties of all of them are checked
+			for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+				Entry entry = entries.get(characteristic.getUuid());
+				if (entry == null) {
+					entry = new Entry(characteristic);
+					entries.put(characteristic.getUuid(), entry);
+				}
+				entry.add(characteristic);
+			}
+			services.put(service.getUuid(), entries);
+		}
+	}
+
+	private Entry entry(UUID serviceUUID, UUID characteristicUUID) {
+		Map<UUID, Entry> entries = services.get(serviceUUID);
+		return entries != null ? entries.get(characteristicUUID) : null;
+	}
+
+	BluetoothGattCharacteristic findReadableCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+		Entry entry = entry(serviceUUID, characteristicUUID);
+		return entry != null ? entry.readable : null;
+	}
+
+	BluetoothGattCharacteristic findWritableCharacteristic(UUID serviceUUID, UUID characteristicUUID, int writeType) {
+		Entry entry = entry(serviceUUID, characteristicUUID);
+		if (entry == null) {
+			return null;
+		}
+		return writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? entry.writableNoResponse : entry.writable;
+	}
+
+	// prefers Notify over Indicate
+	BluetoothGattCharacteristic findNotifyCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+		Entry entry = entry(serviceUUID, characteristicUUID);
+		return entry != null ? entry.notify : null;
+	}
+
+	BluetoothGattDescriptor findReadableDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+		Entry entry = entry(serviceUUID, characteristicUUID);
+		return entry != null ? entry.readableDescriptors.get(descriptorUUID) : null;
+	}
+
+	BluetoothGattDescriptor findWritableDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
+		Entry entry = entry(serviceUUID, characteristicUUID);
+		return entry != null ? entry.writableDescriptors.get(descriptorUUID) : null;
+	}
+
+	/**
+	 * The characteristics of a service sharing a UUID. When none has the property of an operation
+	 * the first characteristic with the UUID is used as a last resort, even if it doesn't have the correct properties.
+	 */
+	private static class Entry {
+		private final BluetoothGattCharacteristic first;
+		private BluetoothGattCharacteristic readable;
+		private BluetoothGattCharacteristic writable;
+		private BluetoothGattCharacteristic writableNoResponse;
+		private BluetoothGattCharacteristic notify;
+		private boolean notifyFound = false;
+		// the descriptors of the first characteristic, like BluetoothGattService.getCharacteristic
+		private final Map<UUID, BluetoothGattDescriptor> readableDescriptors = new HashMap<>();
+		private final Map<UUID, BluetoothGattDescriptor> writableDescriptors = new HashMap<>();
+
+		Entry(BluetoothGattCharacteristic first) {
+			this.first = first;
+			readable = first;
+			writable = first;
+			writableNoResponse = first;
+			notify = first;
+
+			for (BluetoothGattDescriptor descriptor : first.getDescriptors()) {
+				indexDescriptor(readableDescriptors, descriptor, BluetoothGattDescriptor.PERMISSION_READ);
+				indexDescriptor(writableDescriptors, descriptor, BluetoothGattDescriptor.PERMISSION_WRITE);
+			}
+		}
+
+		private static void indexDescriptor(Map<UUID, BluetoothGattDescriptor> descriptors, BluetoothGattDescriptor descriptor, int permission) {
+			BluetoothGattDescriptor indexed = descriptors.get(descriptor.getUuid());
+			if (indexed == null || ((indexed.getPermissions() & permission) == 0 && (descriptor.getPermissions() & permission) != 0)) {
+				descriptors.put(descriptor.getUuid(), descriptor);
+			}
+		}
+
+		// characteristics are added in the order of the service, the first match of a property wins
+		void add(BluetoothGattCharacteristic characteristic) {
+			int properties = characteristic.getProperties();
+			if (readable == first && !has(first, BluetoothGattCharacteristic.PROPERTY_READ)
+					&& (properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+				readable = characteristic;
+			}
+			if (writable == first && !has(first, BluetoothGattCharacteristic.PROPERTY_WRITE)
+					&& (properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) {
+				writable = characteristic;
+			}
+			if (writableNoResponse == first && !has(first, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)
+					&& (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+				writableNoResponse = characteristic;
+			}
+			if (!notifyFound) {
+				if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+					notify = characteristic;
+					notifyFound = true;
+				} else if ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 && !has(notify, BluetoothGattCharacteristic.PROPERTY_INDICATE)) {
+					notify = characteristic;
+				}
+			}
+		}
+
+		private static boolean has(BluetoothGattCharacteristic characteristic, int property) {
+			return (characteristic.getProperties() & property) != 0;
+		}
+	}
+}
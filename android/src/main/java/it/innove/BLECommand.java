@@ -1,20 +1,46 @@
 package it.innove;
 
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.facebook.react.bridge.Callback;
+
+import java.util.Arrays;
 import java.util.UUID;
 
+/**
+ * BLECommand is a GATT operation waiting in the queue of a Peripheral.
+ * Long writes are split in chunks, the command keeps the position of the next chunk.
+ */
 class BLECommand {
 	// Types
-	public static int READ = 10000;
-	public static int REGISTER_NOTIFY = 10001;
-	public static int REMOVE_NOTIFY = 10002;
+	public static final int READ = 10000;
+	public static final int REGISTER_NOTIFY = 10001;
+	public static final int REMOVE_NOTIFY = 10002;
+	public static final int READ_DESCRIPTOR = 10003;
+	public static final int WRITE_DESCRIPTOR = 10004;
+	public static final int READ_RSSI = 10005;
+	public static final int REQUEST_MTU = 10006;
+	public static final int RETRIEVE_SERVICES = 10007;
 	// BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
 	// BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 
+	// the longest attribute value, a larger MTU does not allow longer writes
+	public static final int MAX_ATTRIBUTE_SIZE = 512;
+
 	private UUID serviceUUID;
 	private UUID characteristicUUID;
+	private UUID descriptorUUID;
 	private byte[] data;
 	private int type;
+	private Callback callback;
 
+	private int maxByteSize;
+	private int queueSleepTime;
+	private int mtu;
+	private int offset = 0;
+	private boolean chunkSent = false;
+	private long lastProgressTime = 0;
+	private BluetoothGattCharacteristic characteristic;
 
 	public BLECommand(UUID serviceUUID, UUID characteristicUUID, int type) {
 		this.serviceUUID = serviceUUID;
@@ -29,6 +55,20 @@ class BLECommand {
 		this.type = type;
 	}
 
+	public BLECommand(int type, Callback callback) {
+		this.type = type;
+		this.callback = callback;
+	}
+
+	public BLECommand(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] data, int type, Callback callback) {
+		this.serviceUUID = serviceUUID;
+		this.characteristicUUID = characteristicUUID;
+		this.descriptorUUID = descriptorUUID;
+		this.data = data;
+		this.type = type;
+		this.callback = callback;
+	}
+
 	public int getType() {
 		return type;
 	}
@@ -41,7 +81,92 @@ class BLECommand {
 		return characteristicUUID;
 	}
 
+	public UUID getDescriptorUUID() {
+		return descriptorUUID;
+	}
+
 	public byte[] getData() {
 		return data;
 	}
-}
\ No newline at end of file
+
+	public Callback getCallback() {
+		return callback;
+	}
+
+	public boolean isWrite() {
+		return type == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+	}
+
+	// a maxByteSize <= 0 is replaced by the default of the link when the write starts
+	public void setChunking(int maxByteSize, int queueSleepTime) {
+		this.maxByteSize = maxByteSize;
+		this.queueSleepTime = queueSleepTime;
+	}
+
+	// a write request has a 3 bytes header
+	public static int chunkSizeForMtu(int mtu) {
+		return Math.min(mtu - 3, MAX_ATTRIBUTE_SIZE);
+	}
+
+	public void setDefaultChunkSize(int chunkSize) {
+		if (maxByteSize <= 0) {
+			maxByteSize = chunkSize;
+		}
+	}
+
+	public boolean isChunked() {
+		return maxByteSize > 0 && data.length > maxByteSize;
+	}
+
+	public int getBytesSent() {
+		return offset;
+	}
+
+	// true when a progress event is due, at most one every interval and always the last one
+	public boolean reportProgress(long now, boolean done, long interval) {
+		if (!isChunked() || (!done && now - lastProgressTime < interval)) {
+			return false;
+		}
+		lastProgressTime = now;
+		return true;
+	}
+
+	// the characteristic resolved when the write started, used for the next chunks
+	public BluetoothGattCharacteristic getCharacteristic() {
+		return characteristic;
+	}
+
+	public void setCharacteristic(BluetoothGattCharacteristic characteristic) {
+		this.characteristic = characteristic;
+	}
+
+	public int getQueueSleepTime() {
+		return queueSleepTime;
+	}
+
+	// writes without response wait queueSleepTime between chunks, on top of the flow control of the stack
+	public boolean isPaced() {
+		return type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE && queueSleepTime > 0;
+	}
+
+	public int getMtu() {
+		return mtu;
+	}
+
+	public void setMtu(int mtu) {
+		this.mtu = mtu;
+	}
+
+	// an empty write is still one chunk
+	public boolean hasNextChunk() {
+		return !chunkSent || offset < data.length;
+	}
+
+	public byte[] nextChunk() {
+		int size = maxByteSize > 0 ? Math.min(maxByteSize, data.length - offset) : data.length - offset;
+		byte[] chunk = Arrays.copyOfRange(data, offset, offset + size);
+		offset += size;
+		chunkSent = true;
+		return chunk;
+	}
+}
@@ -0,0 +1,309 @@
+package it.innove;
+
+import android.util.SparseArray;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Beacon decodes the iBeacon, AltBeacon and Eddystone (UID, URL, TLM) frames of an advertising payload.
+ * The identifiers are kept as the strings sent to JS, so a beacon is decoded once per payload.
+ */
+public class Beacon {
+
+	public static final String TYPE_IBEACON = "iBeacon";
+	public static final String TYPE_ALTBEACON = "altBeacon";
+	public static final String TYPE_EDDYSTONE_UID = "eddystoneUid";
+	public static final String TYPE_EDDYSTONE_URL = "eddystoneUrl";
+	public static final String TYPE_EDDYSTONE_TLM = "eddystoneTlm";
+
+	private static final int APPLE_COMPANY_ID = 0x004C;
+	private static final UUID EDDYSTONE_SERVICE_UUID = UUIDHelper.uuidFromString("FEAA");
+
+	private static final int EDDYSTONE_FRAME_UID = 0x00;
+	private static final int EDDYSTONE_FRAME_URL = 0x10;
+	private static final int EDDYSTONE_FRAME_TLM = 0x20;
+
+	private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+	private static final String[] URL_EXPANSIONS = {".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+			".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+
+	private final String type;
+	// iBeacon and AltBeacon: measured power at 1m, Eddystone: power at 0m
+	private int txPower;
+	private String uuid;
+	private int major = -1;
+	private int minor = -1;
+	private String namespace;
+	private String instance;
+	private String url;
+	private int tlmVersion;
+	private int batteryVoltage;
+	private double temperature = Double.NaN;
+	private long advertisingCount;
+	private long uptime;
+
+	private Beacon(String type) {
+		this.type = type;
+	}
+
+	// null when the payload is not a beacon
+	public static Beacon parse(AdvertisingData data) {
+		Beacon beacon = parseIBeacon(data.getManufacturerData(APPLE_COMPANY_ID));
+		if (beacon != null) {
+			return beacon;
+		}
+
+		SparseArray<byte[]> manufacturerData = data.getManufacturerData();
+		if (manufacturerData != null) {
+			for (int i = 0; i < manufacturerData.size(); i++) {
+				beacon = parseAltBeacon(manufacturerData.valueAt(i));
+				if (beacon != null) {
+					return beacon;
+				}
+			}
+		}
+
+		return parseEddystone(data.getServiceData(EDDYSTONE_SERVICE_UUID));
+	}
+
+	// 02 15, proximity UUID, major, minor, measured power
+	private static Beacon parseIBeacon(byte[] bytes) {
+		if (bytes == null || bytes.length < 23 || bytes[0] != 0x02 || bytes[1] != 0x15) {
+			return null;
+		}
+		Beacon beacon = new Beacon(TYPE_IBEACON);
+		beacon.uuid = uuidString(bytes, 2);
+		beacon.major = readUnsigned(bytes, 18, 2);
+		beacon.minor = readUnsigned(bytes, 20, 2);
+		beacon.txPower = bytes[22];
+		return beacon;
+	}
+
+	// BE AC, beacon id (UUID, major, minor), reference RSSI, manufacturer reserved
+	private static Beacon parseAltBeacon(byte[] bytes) {
+		if (bytes == null || bytes.length < 23 || (bytes[0] & 0xFF) != 0xBE || (bytes[1] & 0xFF) != 0xAC) {
+			return null;
+		}
+		Beacon beacon = new Beacon(TYPE_ALTBEACON);
+		beacon.uuid = uuidString(bytes, 2);
+		beacon.major = readUnsigned(bytes, 18, 2);
+		beacon.minor = readUnsigned(bytes, 20, 2);
+		beacon.txPower = bytes[22];
+		return beacon;
+	}
+
+	private static Beacon parseEddystone(byte[] bytes) {
+		if (bytes == null || bytes.length < 2) {
+			return null;
+		}
+
+		Beacon beacon;
+		switch (bytes[0] & 0xFF) {
+			case EDDYSTONE_FRAME_UID:
+				if (bytes.length < 18) {
+					return null;
+				}
+				beacon = new Beacon(TYPE_EDDYSTONE_UID);
+				beacon.txPower = bytes[1];
+				beacon.namespace = BleManager.bytesToHex(Arrays.copyOfRange(bytes, 2, 12));
+				beacon.instance = BleManager.bytesToHex(Arrays.copyOfRange(bytes, 12, 18));
+				return beacon;
+			case EDDYSTONE_FRAME_URL:
+				if (bytes.length < 3) {
+					return null;
+				}
+				beacon = new Beacon(TYPE_EDDYSTONE_URL);
+				beacon.txPower = bytes[1];
+				beacon.url = decodeUrl(bytes, 2);
+				return beacon;
+			case EDDYSTONE_FRAME_TLM:
+				// only the unencrypted version 0 is decoded
+				if (bytes.length < 14 || bytes[1] != 0x00) {
+					return null;
+				}
+				beacon = new Beacon(TYPE_EDDYSTONE_TLM);
+				beacon.tlmVersion = bytes[1];
+				beacon.batteryVoltage = readUnsigned(bytes, 2, 2);
+				int temperature = readUnsigned(bytes, 4, 2);
+				if (temperature != 0x8000) {
+					// signed 8.8 fixed point
+					beacon.temperature = ((short) temperature) / 256.0;
+				}
+				beacon.advertisingCount = readUnsignedLong(bytes, 6);
+				beacon.uptime = readUnsignedLong(bytes, 10);
+				return beacon;
+			default:
+				return null;
+		}
+	}
+
+	private static String decodeUrl(byte[] bytes, int offset) {
+		int scheme = bytes[offset] & 0xFF;
+		if (scheme >= URL_SCHEMES.length) {
+			return null;
+		}
+		StringBuilder url = new StringBuilder(URL_SCHEMES[scheme]);
+		for (int i = offset + 1; i < bytes.length; i++) {
+			int b = bytes[i] & 0xFF;
+			if (b < URL_EXPANSIONS.length) {
+				url.append(URL_EXPANSIONS[b]);
+			} else {
+				url.append((char) b);
+			}
+		}
+		return url.toString();
+	}
+
+	// big endian, beacons do not follow the little endian order of the AD structures
+	private static int readUnsigned(byte[] bytes, int offset, int length) {
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static long readUnsignedLong(byte[] bytes, int offset) {
+		return readUnsigned(bytes, offset, 4) & 0xFFFFFFFFL;
+	}
+
+	private static String uuidString(byte[] bytes, int offset) {
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 8; i++) {
+			msb = (msb << 8) | (bytes[offset + i] & 0xFF);
+			lsb = (lsb << 8) | (bytes[offset + 8 + i] & 0xFF);
+		}
+		return new UUID(msb, lsb).toString();
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public WritableMap asWritableMap(Peripheral peripheral) {
+		WritableMap map = Arguments.createMap();
+		map.putString("id", peripheral.getDevice().getAddress());
+		map.putInt("rssi", peripheral.getAdvertisingRSSI());
+		map.putString("type", type);
+
+		if (TYPE_EDDYSTONE_TLM.equals(type)) {
+			map.putInt("version", tlmVersion);
+			map.putInt("batteryVoltage", batteryVoltage);
+			if (!Double.isNaN(temperature)) {
+				map.putDouble("temperature", temperature);
+			}
+			map.putDouble("advertisingCount", advertisingCount);
+			// the uptime is counted in 0.1 seconds
+			map.putDouble("uptime", uptime / 10.0);
+			return map;
+		}
+
+		map.putInt("txPower", txPower);
+		if (uuid != null) {
+			map.putString("uuid", uuid);
+			map.putInt("major", major);
+			map.putInt("minor", minor);
+		}
+		if (namespace != null) {
+			map.putString("namespace", namespace);
+			map.putString("instance", instance);
+		}
+		if (url != null) {
+			map.putString("url", url);
+		}
+		return map;
+	}
+
+	/**
+	 * Filter discards the advertisements that are not beacons with the requested identifiers.
+	 * The frames without identifiers (Eddystone URL and TLM) only pass when no identifier is requested.
+	 */
+	static class Filter {
+		private List<String> types;
+		private List<String> uuids;
+		private int major = -1;
+		private int minor = -1;
+		private List<String> namespaces;
+		private String instance;
+
+		// null when there is no beacon filter in the options
+		static Filter fromOptions(ReadableMap options) {
+			Filter filter = new Filter();
+			boolean found = false;
+
+			if (options.hasKey("beaconTypes")) {
+				filter.types = new ArrayList<>();
+				ReadableArray types = options.getArray("beaconTypes");
+				for (int i = 0; i < types.size(); i++) {
+					filter.types.add(types.getString(i));
+				}
+				found = true;
+			}
+			if (options.hasKey("beaconUUIDs")) {
+				filter.uuids = new ArrayList<>();
+				ReadableArray uuids = options.getArray("beaconUUIDs");
+				for (int i = 0; i < uuids.size(); i++) {
+					filter.uuids.add(UUIDHelper.uuidFromString(uuids.getString(i)).toString());
+				}
+				found = true;
+			}
+			if (options.hasKey("beaconMajor")) {
+				filter.major = options.getInt("beaconMajor");
+				found = true;
+			}
+			if (options.hasKey("beaconMinor")) {
+				filter.minor = options.getInt("beaconMinor");
+				found = true;
+			}
+			if (options.hasKey("eddystoneNamespaces")) {
+				filter.namespaces = new ArrayList<>();
+				ReadableArray namespaces = options.getArray("eddystoneNamespaces");
+				for (int i = 0; i < namespaces.size(); i++) {
+					// compared with the upper case hex of bytesToHex
+					filter.namespaces.add(namespaces.getString(i).toUpperCase(Locale.US));
+				}
+				found = true;
+			}
+			if (options.hasKey("eddystoneInstance")) {
+				filter.instance = options.getString("eddystoneInstance").toUpperCase(Locale.US);
+				found = true;
+			}
+			return found ? filter : null;
+		}
+
+		boolean matches(Beacon beacon) {
+			if (beacon == null) {
+				return false;
+			}
+			if (types != null && !types.contains(beacon.type)) {
+				return false;
+			}
+			if (uuids != null && (beacon.uuid == null || !uuids.contains(beacon.uuid))) {
+				return false;
+			}
+			if (major >= 0 && beacon.major != major) {
+				return false;
+			}
+			if (minor >= 0 && beacon.minor != minor) {
+				return false;
+			}
+			if (namespaces != null && (beacon.namespace == null || !namespaces.contains(beacon.namespace))) {
+				return false;
+			}
+			if (instance != null && !instance.equals(beacon.instance)) {
+				return false;
+			}
+			return true;
+		}
+	}
+}
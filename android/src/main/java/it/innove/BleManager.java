@@ -10,6 +10,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import com.facebook.react.bridge.*;
@@ -45,12 +47,14 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 	private ReactApplicationContext reactContext;
 	private Callback enableBluetoothCallback;
 	private ScanManager scanManager;
+	// MTU requested automatically after every connection, 0 to keep the default
+	private int targetMtu = 0;
+	private final ConnectionScheduler connectionScheduler = new ConnectionScheduler();
 	private BondRequest bondRequest;
 	private BondRequest removeBondRequest;
 
 	// key is the MAC Address
-	public Map<String, Peripheral> peripherals = new LinkedHashMap<>();
-	// scan session id
+	public PeripheralRegistry<Peripheral> peripherals = new PeripheralRegistry<>();
 
 
 	public BleManager(ReactApplicationContext reactContext) {
@@ -58,6 +62,8 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 		context = reactContext;
 		this.reactContext = reactContext;
 		reactContext.addActivityEventListener(this);
+		// the threads of a previous instance, e.g. before a reload, are shut down
+		ScanManager.resetSchedulers();
 		Log.d(LOG_TAG, "BleManager created");
 	}
 
@@ -101,12 +107,52 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			forceLegacy = options.getBoolean("forceLegacy");
 		}
 
+		targetMtu = options.hasKey("targetMtu") ? options.getInt("targetMtu") : 0;
+		connectionScheduler.setMaxConcurrent(options.hasKey("maxConcurrentConnections") ? options.getInt("maxConcurrentConnections") : 0);
+		connectionScheduler.setDefaultTimeoutMs(options.hasKey("connectionTimeoutMs") ? options.getInt("connectionTimeoutMs") : 0);
+
+		ByteEncoding byteEncoding = ByteEncoding.ARRAY;
+		if (options.hasKey("byteEncoding")) {
+			byteEncoding = ByteEncoding.fromString(options.getString("byteEncoding"));
+			if (byteEncoding == null) {
+				callback.invoke("Invalid byteEncoding: " + options.getString("byteEncoding"));
+				return;
+			}
+		}
+		ByteEncoding.set(byteEncoding);
+
+		if (scanManager != null) {
+			scanManager.destroy();
+		}
+
 		if (Build.VERSION.SDK_INT >= LOLLIPOP && !forceLegacy) {
 			scanManager = new LollipopScanManager(reactContext, this);
 		} else {
 			scanManager = new LegacyScanManager(reactContext, this);
 		}
 
+		int maxPeripherals = 0;
+		if (options.hasKey("maxPeripherals")) {
+			maxPeripherals = options.getInt("maxPeripherals");
+		}
+		int peripheralTtlMs = 0;
+		if (options.hasKey("peripheralTtlMs")) {
+			peripheralTtlMs = options.getInt("peripheralTtlMs");
+		}
+		peripherals.configure(maxPeripherals, peripheralTtlMs, new PeripheralRegistry.EvictionListener<Peripheral>() {
+			@Override
+			public void onEvicted(Peripheral peripheral) {
+				WritableMap map = Arguments.createMap();
+				map.putString("peripheral", peripheral.getDevice().getAddress());
+				sendEvent("BleManagerEvictPeripheral", map);
+			}
+		});
+		Handler scheduler = ScanManager.getScheduler();
+		scheduler.removeCallbacks(evictExpiredPeripherals);
+		if (peripheralTtlMs > 0) {
+			scheduler.postDelayed(evictExpiredPeripherals, getEvictionPeriod());
+		}
+
 		IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
 		filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
 		context.registerReceiver(mReceiver, filter);
@@ -114,6 +160,20 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 		Log.d(LOG_TAG, "BleManager initialized");
 	}
 
+	private long getEvictionPeriod() {
+		return Math.max(1000, peripherals.getTtl() / 2);
+	}
+
+	private Runnable evictExpiredPeripherals = new Runnable() {
+		@Override
+		public void run() {
+			peripherals.evictExpired(SystemClock.elapsedRealtime());
+			if (peripherals.getTtl() > 0) {
+				ScanManager.getScheduler().postDelayed(this, getEvictionPeriod());
+			}
+		}
+	};
+
 	@ReactMethod
 	public void enableBluetooth(Callback callback) {
 		if (getBluetoothAdapter() == null) {
@@ -144,14 +204,14 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			return;
 		}
 
-		for (Iterator<Map.Entry<String, Peripheral>> iterator = peripherals.entrySet().iterator(); iterator.hasNext(); ) {
-			Map.Entry<String, Peripheral> entry = iterator.next();
-			if (!entry.getValue().isConnected()) {
-				iterator.remove();
-			}
-		}
+		peripherals.removeDisconnected();
 
-		scanManager.scan(serviceUUIDs, scanSeconds, options, callback);
+		try {
+			scanManager.scan(serviceUUIDs, scanSeconds, allowDuplicates, options, callback);
+		} catch (IllegalArgumentException e) {
+			Log.d(LOG_TAG, "Invalid scan options", e);
+			callback.invoke(e.getMessage());
+		}
 	}
 
 	@ReactMethod
@@ -169,6 +229,15 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 		scanManager.stopScan(callback);
 	}
 
+	@ReactMethod
+	public void getScanMetrics(Callback callback) {
+		if (scanManager == null) {
+			callback.invoke("BleManager not started", null);
+			return;
+		}
+		scanManager.getScanMetrics(callback);
+	}
+
 	@ReactMethod
 	public void createBond(String peripheralUUID, Callback callback) {
 		Log.d(LOG_TAG, "Request bond to: " + peripheralUUID);
@@ -218,6 +287,11 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 
 	@ReactMethod
 	public void connect(String peripheralUUID, Callback callback) {
+		connectWithOptions(peripheralUUID, null, callback);
+	}
+
+	@ReactMethod
+	public void connectWithOptions(String peripheralUUID, ReadableMap options, Callback callback) {
 		Log.d(LOG_TAG, "Connect to: " + peripheralUUID);
 
 		Peripheral peripheral = retrieveOrCreatePeripheral(peripheralUUID);
@@ -225,7 +299,33 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			callback.invoke("Invalid peripheral uuid");
 			return;
 		}
-		peripheral.connect(callback, getCurrentActivity());
+		int priority = 0;
+		int timeoutMs = -1;
+		ReconnectPolicy reconnectPolicy = null;
+		if (options != null) {
+			if (options.hasKey("reconnect")) {
+				try {
+					reconnectPolicy = ReconnectPolicy.fromOptions(options.getMap("reconnect"));
+				} catch (IllegalArgumentException e) {
+					callback.invoke(e.getMessage());
+					return;
+				}
+			}
+			if (options.hasKey("priority")) {
+				priority = options.getInt("priority");
+			}
+			if (options.hasKey("timeoutMs")) {
+				timeoutMs = options.getInt("timeoutMs");
+			}
+		}
+		peripheral.setTargetMtu(targetMtu);
+		peripheral.setReconnectPolicy(reconnectPolicy, connectionScheduler);
+		connectionScheduler.connect(peripheral, getCurrentActivity(), priority, timeoutMs, callback);
+	}
+
+	@ReactMethod
+	public void getConnectionMetrics(Callback callback) {
+		callback.invoke(null, connectionScheduler.getMetrics());
 	}
 
 	@ReactMethod
@@ -234,7 +334,9 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 
 		Peripheral peripheral = peripherals.get(peripheralUUID);
 		if (peripheral != null) {
+			// disconnected first so a cancelled reconnection is not retried
 			peripheral.disconnect();
+			connectionScheduler.cancel(peripheral);
 			callback.invoke();
 		} else
 			callback.invoke("Peripheral not found");
@@ -251,6 +353,25 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			callback.invoke("Peripheral not found");
 	}
 
+	@ReactMethod
+	public void startNotificationWithOptions(String deviceUUID, String serviceUUID, String characteristicUUID, ReadableMap options, Callback callback) {
+		Log.d(LOG_TAG, "startNotificationWithOptions");
+
+		Peripheral peripheral = peripherals.get(deviceUUID);
+		if (peripheral != null) {
+			peripheral.registerNotify(UUIDHelper.uuidFromString(serviceUUID), UUIDHelper.uuidFromString(characteristicUUID), options, callback);
+		} else
+			callback.invoke("Peripheral not found");
+	}
+
+	@ReactMethod
+	public void ackNotification(String deviceUUID, String serviceUUID, String characteristicUUID) {
+		Peripheral peripheral = peripherals.get(deviceUUID);
+		if (peripheral != null) {
+			peripheral.ackNotification(UUIDHelper.uuidFromString(serviceUUID), UUIDHelper.uuidFromString(characteristicUUID));
+		}
+	}
+
 	@ReactMethod
 	public void stopNotification(String deviceUUID, String serviceUUID, String characteristicUUID, Callback callback) {
 		Log.d(LOG_TAG, "stopNotification");
@@ -269,9 +390,9 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 
 		Peripheral peripheral = peripherals.get(deviceUUID);
 		if (peripheral != null) {
-			byte[] decoded = new byte[message.size()];
-			for (int i = 0; i < message.size(); i++) {
-				decoded[i] = new Integer(message.getInt(i)).byteValue();
+			byte[] decoded = decodeMessage(message, callback);
+			if (decoded == null) {
+				return;
 			}
 			Log.d(LOG_TAG, "Message(" + decoded.length + "): " + bytesToHex(decoded));
 			peripheral.write(UUIDHelper.uuidFromString(serviceUUID), UUIDHelper.uuidFromString(characteristicUUID), decoded, maxByteSize, null, callback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
@@ -285,9 +406,9 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 
 		Peripheral peripheral = peripherals.get(deviceUUID);
 		if (peripheral != null) {
-			byte[] decoded = new byte[message.size()];
-			for (int i = 0; i < message.size(); i++) {
-				decoded[i] = new Integer(message.getInt(i)).byteValue();
+			byte[] decoded = decodeMessage(message, callback);
+			if (decoded == null) {
+				return;
 			}
 			Log.d(LOG_TAG, "Message(" + decoded.length + "): " + bytesToHex(decoded));
 			peripheral.write(UUIDHelper.uuidFromString(serviceUUID), UUIDHelper.uuidFromString(characteristicUUID), decoded, maxByteSize, queueSleepTime, callback, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
@@ -301,9 +422,9 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 
 		Peripheral peripheral = peripherals.get(deviceUUID);
 		if (peripheral != null) {
-			byte[] decoded = new byte[message.size()];
-			for (int i = 0; i < message.size(); i++) {
-				decoded[i] = new Integer(message.getInt(i)).byteValue();
+			byte[] decoded = decodeMessage(message, callback);
+			if (decoded == null) {
+				return;
 			}
 			Log.d(LOG_TAG, "Message(" + decoded.length + "): " + bytesToHex(decoded));
 			peripheral.writeDescriptor(UUIDHelper.uuidFromString(serviceUUID), UUIDHelper.uuidFromString(characteristicUUID), UUIDHelper.uuidFromString(descriptorUUID), decoded, maxByteSize, queueSleepTime, callback);
@@ -332,6 +453,25 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			callback.invoke("Peripheral not found", null);
 	}
 
+	@ReactMethod
+	public void transaction(String deviceUUID, ReadableArray operations, Callback callback) {
+		Log.d(LOG_TAG, "Transaction of " + operations.size() + " operations on: " + deviceUUID);
+		Peripheral peripheral = peripherals.get(deviceUUID);
+		if (peripheral == null) {
+			callback.invoke("Peripheral not found", null);
+			return;
+		}
+
+		Transaction transaction;
+		try {
+			transaction = Transaction.fromOperations(peripheral, operations, callback);
+		} catch (IllegalArgumentException e) {
+			callback.invoke("Invalid transaction: " + e.getMessage(), null);
+			return;
+		}
+		transaction.execute();
+	}
+
 	@ReactMethod
 	public void retrieveServices(String deviceUUID, Callback callback) {
 		Log.d(LOG_TAG, "Retrieve services from: " + deviceUUID);
@@ -353,36 +493,6 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			callback.invoke("Peripheral not found", null);
 	}
 
-	private BluetoothAdapter.LeScanCallback mLeScanCallback =
-			new BluetoothAdapter.LeScanCallback() {
-
-
-				@Override
-				public void onLeScan(final BluetoothDevice device, final int rssi,
-									 final byte[] scanRecord) {
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Log.i(LOG_TAG, "DiscoverPeripheral: " + device.getName());
-							String address = device.getAddress();
-
-							if (!peripherals.containsKey(address)) {
-								Peripheral peripheral = new Peripheral(device, rssi, scanRecord, reactContext);
-								peripherals.put(device.getAddress(), peripheral);
-								WritableMap map = peripheral.asWritableMap();
-								sendEvent("BleManagerDiscoverPeripheral", map);
-							} else {
-								// this isn't necessary
-								Peripheral peripheral = peripherals.get(address);
-								peripheral.updateRssi(rssi);
-							}
-						}
-					});
-				}
-
-
-			};
-
 	@ReactMethod
 	public void checkState() {
 		Log.d(LOG_TAG, "checkState");
@@ -477,9 +587,7 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 	public void getDiscoveredPeripherals(Callback callback) {
 		Log.d(LOG_TAG, "Get discovered peripherals");
 		WritableArray map = Arguments.createArray();
-		Map<String, Peripheral> peripheralsCopy = new LinkedHashMap<>(peripherals);
-		for (Map.Entry<String, Peripheral> entry : peripheralsCopy.entrySet()) {
-			Peripheral peripheral = entry.getValue();
+		for (Peripheral peripheral : peripherals.values()) {
 			WritableMap jsonBundle = peripheral.asWritableMap();
 			map.pushMap(jsonBundle);
 		}
@@ -550,6 +658,17 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 		}
 	}
 
+	// null if the message can't be decoded, the error is sent to the callback
+	private byte[] decodeMessage(ReadableArray message, Callback callback) {
+		try {
+			return ByteEncoding.get().decode(message);
+		} catch (IllegalArgumentException e) {
+			Log.d(LOG_TAG, "Invalid message", e);
+			callback.invoke("Invalid message: " + e.getMessage());
+			return null;
+		}
+	}
+
 	private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
 	public static String bytesToHex(byte[] bytes) {
@@ -587,6 +706,14 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 
 	}
 
+	@Override
+	public void onCatalystInstanceDestroy() {
+		if (scanManager != null) {
+			scanManager.destroy();
+		}
+		ScanManager.shutdownSchedulers();
+	}
+
 	private Peripheral retrieveOrCreatePeripheral(String peripheralUUID) {
 		Peripheral peripheral = peripherals.get(peripheralUUID);
 		if (peripheral == null) {
@@ -596,7 +723,10 @@ class BleManager extends ReactContextBaseJavaModule implements ActivityEventList
 			if (BluetoothAdapter.checkBluetoothAddress(peripheralUUID)) {
 				BluetoothDevice device = bluetoothAdapter.getRemoteDevice(peripheralUUID);
 				peripheral = new Peripheral(device, reactContext);
-				peripherals.put(peripheralUUID, peripheral);
+				Peripheral current = peripherals.putIfAbsent(peripheralUUID, peripheral);
+				if (current != null) {
+					peripheral = current;
+				}
 			}
 		}
 		return peripheral;
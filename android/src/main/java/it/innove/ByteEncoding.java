@@ -0,0 +1,104 @@
+package it.innove;
+
+import android.util.Base64;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * ByteEncoding is how byte payloads cross the bridge, it is set for the whole module by the byteEncoding start option.
+ * Writes always accept an array of numbers, a string is decoded with the module encoding.
+ */
+public enum ByteEncoding {
+	ARRAY, BASE64, HEX;
+
+	private static volatile ByteEncoding current = ARRAY;
+
+	public static ByteEncoding get() {
+		return current;
+	}
+
+	public static void set(ByteEncoding encoding) {
+		current = encoding;
+	}
+
+	// 'array', 'base64' or 'hex', null for an unknown name
+	public static ByteEncoding fromString(String name) {
+		if ("array".equals(name)) {
+			return ARRAY;
+		} else if ("base64".equals(name)) {
+			return BASE64;
+		} else if ("hex".equals(name)) {
+			return HEX;
+		}
+		return null;
+	}
+
+	// a WritableArray of numbers or a String, both can be passed to a Callback or put in a map
+	public Object encode(byte[] bytes) {
+		if (bytes == null) {
+			bytes = new byte[0];
+		}
+		switch (this) {
+			case BASE64:
+				return Base64.encodeToString(bytes, Base64.NO_WRAP);
+			case HEX:
+				return BleManager.bytesToHex(bytes);
+			default:
+				return BleManager.bytesToWritableArray(bytes);
+		}
+	}
+
+	public void put(WritableMap map, String key, byte[] bytes) {
+		Object value = encode(bytes);
+		if (value instanceof String) {
+			map.putString(key, (String) value);
+		} else {
+			map.putArray(key, (WritableArray) value);
+		}
+	}
+
+	public void push(WritableArray array, byte[] bytes) {
+		Object value = encode(bytes);
+		if (value instanceof String) {
+			array.pushString((String) value);
+		} else {
+			array.pushArray((WritableArray) value);
+		}
+	}
+
+	// the message is an array of numbers or an array with one encoded string, throws IllegalArgumentException if it is malformed
+	public byte[] decode(ReadableArray message) {
+		if (message.size() == 1 && message.getType(0) == ReadableType.String) {
+			String value = message.getString(0);
+			if (this == HEX) {
+				return hexToBytes(value);
+			}
+			return Base64.decode(value, Base64.NO_WRAP);
+		}
+
+		byte[] decoded = new byte[message.size()];
+		for (int i = 0; i < message.size(); i++) {
+			decoded[i] = (byte) message.getInt(i);
+		}
+		return decoded;
+	}
+
+	static byte[] hexToBytes(String hex) {
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Odd length hex string");
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Invalid hex string");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+}
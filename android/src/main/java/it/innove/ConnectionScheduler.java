@@ -0,0 +1,250 @@
+package it.innove;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * ConnectionScheduler limits the connectGatt attempts running at the same time, the stack fails
+ * with GATT 133 errors when too many are started together. The other attempts wait in a queue,
+ * by priority and then in the order they were requested, and every attempt can time out.
+ */
+class ConnectionScheduler {
+
+	// no limit and no timeout by default, like a direct connectGatt
+	private int maxConcurrent = 0;
+	private int defaultTimeoutMs = 0;
+
+	// higher priority first, then in request order, the heap of the queue alone is not FIFO
+	static final Comparator<Attempt> ORDER = new Comparator<Attempt>() {
+		@Override
+		public int compare(Attempt a, Attempt b) {
+			if (a.priority != b.priority) {
+				return a.priority > b.priority ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	private long sequence = 0;
+	private final PriorityQueue<Attempt> queue = new PriorityQueue<>(11, ORDER);
+	// key is the MAC Address
+	private final Map<String, Attempt> running = new HashMap<>();
+
+	private long attempts;
+	private long started;
+	private long connected;
+	private long failed;
+	private long timedOut;
+	private long cancelled;
+	private long waitTimeSum;
+	private long maxWaitTime;
+	private long connectTimeSum;
+	private int maxQueueDepth;
+
+	synchronized void setMaxConcurrent(int maxConcurrent) {
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	synchronized void setDefaultTimeoutMs(int defaultTimeoutMs) {
+		this.defaultTimeoutMs = defaultTimeoutMs;
+	}
+
+	// timeoutMs < 0 uses the default timeout
+	void connect(Peripheral peripheral, Context context, int priority, int timeoutMs, Callback callback) {
+		String address = peripheral.getDevice().getAddress();
+		synchronized (this) {
+			// the callbacks of a second connect are invoked with the ones of the pending attempt
+			Attempt pending = running.get(address);
+			if (pending == null) {
+				pending = find(address);
+			}
+			if (pending != null) {
+				pending.callbacks.add(callback);
+				return;
+			}
+
+			Attempt attempt = new Attempt(peripheral, address, context, priority, timeoutMs >= 0 ? timeoutMs : defaultTimeoutMs,
+					sequence++, SystemClock.elapsedRealtime());
+			attempt.callbacks.add(callback);
+			attempts++;
+			queue.add(attempt);
+			maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+		}
+		startNext();
+	}
+
+	// fail the attempt of a peripheral that is disconnected before it connects
+	void cancel(Peripheral peripheral) {
+		String address = peripheral.getDevice().getAddress();
+		Attempt attempt;
+		synchronized (this) {
+			attempt = running.get(address);
+			if (attempt == null) {
+				attempt = find(address);
+				if (attempt == null) {
+					return;
+				}
+				queue.remove(attempt);
+			}
+			cancelled++;
+		}
+		finish(attempt, new Object[]{"Connection cancelled"});
+	}
+
+	// an attempt of the address is waiting or running
+	synchronized boolean isPending(String address) {
+		return running.containsKey(address) || find(address) != null;
+	}
+
+	private Attempt find(String address) {
+		for (Attempt attempt : queue) {
+			if (attempt.address.equals(address)) {
+				return attempt;
+			}
+		}
+		return null;
+	}
+
+	private void startNext() {
+		List<Attempt> started = new ArrayList<>();
+		synchronized (this) {
+			while (!queue.isEmpty() && (maxConcurrent <= 0 || running.size() < maxConcurrent)) {
+				Attempt attempt = queue.poll();
+				attempt.startTime = SystemClock.elapsedRealtime();
+				long waitTime = attempt.startTime - attempt.enqueueTime;
+				this.started++;
+				waitTimeSum += waitTime;
+				maxWaitTime = Math.max(maxWaitTime, waitTime);
+				running.put(attempt.address, attempt);
+				started.add(attempt);
+			}
+		}
+		// connectGatt is called without the lock, a callback can finish the attempt right away
+		for (final Attempt attempt : started) {
+			Log.d(BleManager.LOG_TAG, "Connection attempt to " + attempt.address + " after waiting " + (attempt.startTime - attempt.enqueueTime) + "ms");
+			if (attempt.timeoutMs > 0) {
+				attempt.timeout = new Runnable() {
+					@Override
+					public void run() {
+						Log.d(BleManager.LOG_TAG, "Connection attempt to " + attempt.address + " timed out");
+						synchronized (ConnectionScheduler.this) {
+							if (running.get(attempt.address) != attempt) {
+								return;
+							}
+							timedOut++;
+						}
+						attempt.peripheral.abortConnect();
+						finish(attempt, new Object[]{"Connection timeout"});
+					}
+				};
+				ScanManager.getScheduler().postDelayed(attempt.timeout, attempt.timeoutMs);
+			}
+			attempt.peripheral.connect(new Callback() {
+				@Override
+				public void invoke(Object... args) {
+					synchronized (ConnectionScheduler.this) {
+						if (args.length > 0 && args[0] != null) {
+							failed++;
+						} else {
+							connected++;
+							connectTimeSum += SystemClock.elapsedRealtime() - attempt.startTime;
+						}
+					}
+					finish(attempt, args);
+				}
+			}, attempt.context);
+		}
+	}
+
+	// invokes the callbacks once and frees the slot of the attempt
+	private void finish(Attempt attempt, Object[] args) {
+		List<Callback> callbacks;
+		synchronized (this) {
+			if (attempt.finished) {
+				return;
+			}
+			attempt.finished = true;
+			if (running.get(attempt.address) == attempt) {
+				running.remove(attempt.address);
+			}
+			callbacks = new ArrayList<>(attempt.callbacks);
+		}
+		if (attempt.timeout != null) {
+			ScanManager.getScheduler().removeCallbacks(attempt.timeout);
+		}
+		for (Callback callback : callbacks) {
+			callback.invoke(args);
+		}
+		startNext();
+	}
+
+	synchronized WritableMap getMetrics() {
+		WritableMap map = Arguments.createMap();
+		map.putInt("maxConcurrent", maxConcurrent);
+		map.putInt("queueDepth", queue.size());
+		map.putInt("maxQueueDepth", maxQueueDepth);
+		map.putInt("running", running.size());
+		map.putDouble("attempts", attempts);
+		map.putDouble("connected", connected);
+		map.putDouble("failed", failed);
+		map.putDouble("timedOut", timedOut);
+		map.putDouble("cancelled", cancelled);
+		if (started > 0) {
+			map.putDouble("meanWaitMs", (double) waitTimeSum / started);
+		}
+		map.putDouble("maxWaitMs", maxWaitTime);
+		if (connected > 0) {
+			map.putDouble("meanConnectMs", (double) connectTimeSum / connected);
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		long oldestWait = 0;
+		Iterator<Attempt> iterator = queue.iterator();
+		while (iterator.hasNext()) {
+			oldestWait = Math.max(oldestWait, now - iterator.next().enqueueTime);
+		}
+		map.putDouble("oldestWaitMs", oldestWait);
+		return map;
+	}
+
+	static class Attempt {
+		private final Peripheral peripheral;
+		private final String address;
+		private final Context context;
+		private final int priority;
+		private final int timeoutMs;
+		private final long sequence;
+		private final long enqueueTime;
+		private final List<Callback> callbacks = new ArrayList<>();
+		private long startTime;
+		private Runnable timeout;
+		private boolean finished = false;
+
+		Attempt(Peripheral peripheral, String address, Context context, int priority, int timeoutMs, long sequence, long enqueueTime) {
+			this.peripheral = peripheral;
+			this.address = address;
+			this.context = context;
+			this.priority = priority;
+			this.timeoutMs = timeoutMs;
+			this.sequence = sequence;
+			this.enqueueTime = enqueueTime;
+		}
+
+		String getAddress() {
+			return address;
+		}
+	}
+}
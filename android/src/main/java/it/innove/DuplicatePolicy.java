@@ -0,0 +1,65 @@
+package it.innove;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.Arrays;
+
+/**
+ * DuplicatePolicy decides if a new advertisement of an already discovered peripheral has to be sent to JS.
+ * It only looks at the data stored in the Peripheral, so it runs before any WritableMap is built.
+ */
+class DuplicatePolicy {
+
+	private final boolean allowDuplicates;
+	// minimum time between two events of the same peripheral
+	private final int minEmitIntervalMs;
+	// minimum RSSI change from the last emitted value
+	private final int minRssiDelta;
+	// emit again only when the advertising payload changes
+	private final boolean emitOnPayloadChangeOnly;
+
+	DuplicatePolicy(boolean allowDuplicates, int minEmitIntervalMs, int minRssiDelta, boolean emitOnPayloadChangeOnly) {
+		this.allowDuplicates = allowDuplicates;
+		this.minEmitIntervalMs = minEmitIntervalMs;
+		this.minRssiDelta = minRssiDelta;
+		this.emitOnPayloadChangeOnly = emitOnPayloadChangeOnly;
+	}
+
+	static DuplicatePolicy fromOptions(boolean allowDuplicates, ReadableMap options) {
+		int minEmitIntervalMs = 0;
+		int minRssiDelta = 0;
+		boolean emitOnPayloadChangeOnly = false;
+
+		if (options.hasKey("minEmitIntervalMs")) {
+			minEmitIntervalMs = options.getInt("minEmitIntervalMs");
+		}
+		if (options.hasKey("minRssiDelta")) {
+			minRssiDelta = options.getInt("minRssiDelta");
+		}
+		if (options.hasKey("emitOnPayloadChangeOnly")) {
+			emitOnPayloadChangeOnly = options.getBoolean("emitOnPayloadChangeOnly");
+		}
+		return new DuplicatePolicy(allowDuplicates, minEmitIntervalMs, minRssiDelta, emitOnPayloadChangeOnly);
+	}
+
+	boolean shouldEmit(Peripheral peripheral, long now) {
+		if (!peripheral.hasBeenEmitted()) {
+			return true;
+		}
+		if (!allowDuplicates) {
+			return false;
+		}
+
+		// a new payload is always interesting
+		if (!Arrays.equals(peripheral.getAdvertisingDataBytes(), peripheral.getLastEmittedDataBytes())) {
+			return true;
+		}
+		if (emitOnPayloadChangeOnly) {
+			return false;
+		}
+		if (now - peripheral.getLastEmittedTime() < minEmitIntervalMs) {
+			return false;
+		}
+		return Math.abs(peripheral.getReportedRSSI() - peripheral.getLastEmittedRSSI()) >= minRssiDelta;
+	}
+}
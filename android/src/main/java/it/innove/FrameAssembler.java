@@ -0,0 +1,242 @@
+package it.innove;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * FrameAssembler rebuilds the messages a peripheral splits over several notifications.
+ * A frame is length prefixed, terminated by a delimiter or of a fixed size, the fragments are appended to one buffer.
+ */
+class FrameAssembler {
+
+	public static final String LENGTH_PREFIXED = "lengthPrefixed";
+	public static final String DELIMITER = "delimiter";
+	public static final String FIXED_SIZE = "fixedSize";
+
+	private static final int DEFAULT_MAX_FRAME_SIZE = 65536;
+
+	private final String type;
+	// lengthPrefixed
+	private int headerSize = 2;
+	private boolean littleEndian = true;
+	private boolean lengthIncludesHeader = false;
+	private boolean includeHeader = false;
+	// delimiter
+	private byte[] delimiter;
+	private boolean includeDelimiter = false;
+	// fixedSize
+	private int frameSize;
+
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+	private byte[] buffer = new byte[64];
+	private int length = 0;
+	// delimiter: the buffer before this position has no delimiter
+	private int searched = 0;
+	// lengthPrefixed: bytes still to drop of a frame larger than maxFrameSize
+	private long skip = 0;
+	private long discarded = 0;
+
+	private FrameAssembler(String type) {
+		this.type = type;
+	}
+
+	// throws IllegalArgumentException if the framing options are invalid
+	static FrameAssembler fromOptions(ReadableMap options) {
+		String type = options.hasKey("type") ? options.getString("type") : null;
+		FrameAssembler assembler = new FrameAssembler(type);
+
+		if (LENGTH_PREFIXED.equals(type)) {
+			assembler = lengthPrefixed(options.hasKey("headerSize") ? options.getInt("headerSize") : 2,
+					!options.hasKey("littleEndian") || options.getBoolean("littleEndian"),
+					options.hasKey("lengthIncludesHeader") && options.getBoolean("lengthIncludesHeader"),
+					options.hasKey("includeHeader") && options.getBoolean("includeHeader"));
+		} else if (DELIMITER.equals(type)) {
+			if (!options.hasKey("delimiter")) {
+				throw new IllegalArgumentException("Missing delimiter");
+			}
+			assembler.delimiter = ByteEncoding.get().decode(options.getArray("delimiter"));
+			if (assembler.delimiter.length == 0) {
+				throw new IllegalArgumentException("Empty delimiter");
+			}
+			if (options.hasKey("includeDelimiter")) {
+				assembler.includeDelimiter = options.getBoolean("includeDelimiter");
+			}
+		} else if (FIXED_SIZE.equals(type)) {
+			assembler.frameSize = options.hasKey("frameSize") ? options.getInt("frameSize") : 0;
+			if (assembler.frameSize <= 0) {
+				throw new IllegalArgumentException("Invalid frameSize: " + assembler.frameSize);
+			}
+		} else {
+			throw new IllegalArgumentException("Invalid framing type: " + type);
+		}
+
+		if (options.hasKey("maxFrameSize")) {
+			assembler.maxFrameSize = options.getInt("maxFrameSize");
+		}
+		return assembler;
+	}
+
+	// throws IllegalArgumentException if the header is not 1, 2 or 4 bytes
+	static FrameAssembler lengthPrefixed(int headerSize, boolean littleEndian, boolean lengthIncludesHeader, boolean includeHeader) {
+		if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+			throw new IllegalArgumentException("Invalid headerSize: " + headerSize);
+		}
+		FrameAssembler assembler = new FrameAssembler(LENGTH_PREFIXED);
+		assembler.headerSize = headerSize;
+		assembler.littleEndian = littleEndian;
+		assembler.lengthIncludesHeader = lengthIncludesHeader;
+		assembler.includeHeader = includeHeader;
+		return assembler;
+	}
+
+	// bytes thrown away because a frame was larger than maxFrameSize or its length header was corrupt,
+	// they are reported to JS with the next event
+	long getDiscarded() {
+		return discarded;
+	}
+
+	void reset() {
+		length = 0;
+		searched = 0;
+		skip = 0;
+	}
+
+	// the frames completed by this fragment, in order
+	List<byte[]> append(byte[] fragment) {
+		int offset = 0;
+		if (fragment != null && skip > 0) {
+			offset = (int) Math.min(skip, fragment.length);
+			skip -= offset;
+		}
+		if (fragment == null || offset == fragment.length) {
+			return Collections.emptyList();
+		}
+		int size = fragment.length - offset;
+		if (length + size > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + size));
+		}
+		System.arraycopy(fragment, offset, buffer, length, size);
+		length += size;
+
+		List<byte[]> frames = new ArrayList<>();
+		int start = 0;
+		while (true) {
+			if (isCorruptHeader(start)) {
+				// a length shorter than the header itself, skip the header to resynchronize
+				discard(headerSize);
+				start += headerSize;
+				continue;
+			}
+			int end = frameEnd(start);
+			if (end < 0) {
+				break;
+			}
+			if (payloadLength(start, end) > maxFrameSize) {
+				discard(end - start);
+			} else {
+				frames.add(frame(start, end));
+			}
+			start = end;
+		}
+
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, length - start);
+			length -= start;
+			searched = Math.max(searched - start, 0);
+		}
+		// a delimiter that did not come in time, drop the partial frame
+		if (DELIMITER.equals(type) && length > maxFrameSize + delimiter.length) {
+			discard(length);
+			length = 0;
+			searched = 0;
+		}
+		return frames;
+	}
+
+	// the end of the frame starting at start in the buffer, -1 if it is not complete yet
+	private int frameEnd(int start) {
+		int available = length - start;
+		if (LENGTH_PREFIXED.equals(type)) {
+			if (available < headerSize) {
+				return -1;
+			}
+			long frameLength = readLength(start);
+			if (!lengthIncludesHeader) {
+				frameLength += headerSize;
+			}
+			if (frameLength - headerSize > maxFrameSize && available < frameLength) {
+				// never buffer a frame that is going to be discarded
+				discard(frameLength);
+				skip = frameLength - available;
+				length = start;
+				return -1;
+			}
+			return available >= frameLength ? start + (int) frameLength : -1;
+		} else if (DELIMITER.equals(type)) {
+			int index = indexOf(delimiter, Math.max(start, searched));
+			if (index < 0) {
+				searched = Math.max(length - delimiter.length + 1, start);
+				return -1;
+			}
+			searched = index + delimiter.length;
+			return searched;
+		} else {
+			return available >= frameSize ? start + frameSize : -1;
+		}
+	}
+
+	// only a length that includes the header can be shorter than it
+	private boolean isCorruptHeader(int start) {
+		return LENGTH_PREFIXED.equals(type) && lengthIncludesHeader && length - start >= headerSize && readLength(start) < headerSize;
+	}
+
+	// the frame without the header or the delimiter
+	private int payloadLength(int start, int end) {
+		if (LENGTH_PREFIXED.equals(type)) {
+			return end - start - headerSize;
+		} else if (DELIMITER.equals(type)) {
+			return end - start - delimiter.length;
+		}
+		return end - start;
+	}
+
+	private byte[] frame(int start, int end) {
+		if (LENGTH_PREFIXED.equals(type) && !includeHeader) {
+			start += headerSize;
+		} else if (DELIMITER.equals(type) && !includeDelimiter) {
+			end -= delimiter.length;
+		}
+		return Arrays.copyOfRange(buffer, start, end);
+	}
+
+	private long readLength(int offset) {
+		long value = 0;
+		for (int i = 0; i < headerSize; i++) {
+			int b = buffer[offset + (littleEndian ? headerSize - 1 - i : i)] & 0xFF;
+			value = (value << 8) | b;
+		}
+		return value;
+	}
+
+	private int indexOf(byte[] pattern, int from) {
+		outer:
+		for (int i = from; i <= length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (buffer[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private void discard(long bytes) {
+		discarded += bytes;
+	}
+}
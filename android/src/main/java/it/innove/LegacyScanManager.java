@@ -2,26 +2,16 @@ package it.innove;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
 import android.util.Log;
 import com.facebook.react.bridge.*;
 
-import static com.facebook.react.bridge.UiThreadUtil.runOnUiThread;
-
 public class LegacyScanManager extends ScanManager {
 
 	public LegacyScanManager(ReactApplicationContext reactContext, BleManager bleManager) {
 		super(reactContext, bleManager);
 	}
 
-	@Override
-	public void stopScan(Callback callback) {
-		// update scanSessionId to prevent stopping next scan by running timeout thread
-		scanSessionId.incrementAndGet();
-
-		getBluetoothAdapter().stopLeScan(mLeScanCallback);
-		callback.invoke();
-	}
-
 	private BluetoothAdapter.LeScanCallback mLeScanCallback =
 			new BluetoothAdapter.LeScanCallback() {
 
@@ -29,24 +19,13 @@ public class LegacyScanManager extends ScanManager {
 				@Override
 				public void onLeScan(final BluetoothDevice device, final int rssi,
 									 final byte[] scanRecord) {
-					runOnUiThread(new Runnable() {
+					postResult(new Runnable() {
 						@Override
 						public void run() {
-							Log.i(bleManager.LOG_TAG, "DiscoverPeripheral: " + device.getName());
-							String address = device.getAddress();
-							Peripheral peripheral;
-
-							if (!bleManager.peripherals.containsKey(address)) {
-								peripheral = new Peripheral(device, rssi, scanRecord, reactContext);
-								bleManager.peripherals.put(device.getAddress(), peripheral);
-							} else {
-								peripheral = bleManager.peripherals.get(address);
-								peripheral.updateRssi(rssi);
-								peripheral.updateData(scanRecord);
+							Peripheral peripheral = onAdvertisement(device, rssi, scanRecord, SystemClock.elapsedRealtime());
+							if (peripheral != null) {
+								emitDiscovery(peripheral);
 							}
-
-							WritableMap map = peripheral.asWritableMap();
-							bleManager.sendEvent("BleManagerDiscoverPeripheral", map);
 						}
 					});
 				}
@@ -55,44 +34,20 @@ public class LegacyScanManager extends ScanManager {
 			};
 
 	@Override
-	public void scan(ReadableArray serviceUUIDs, final int scanSeconds, ReadableMap options, Callback callback) {
-		if (serviceUUIDs.size() > 0) {
-			Log.d(bleManager.LOG_TAG, "Filter is not working in pre-lollipop devices");
-		}
-		getBluetoothAdapter().startLeScan(mLeScanCallback);
-
-		if (scanSeconds > 0) {
-			Thread thread = new Thread() {
-				private int currentScanSession = scanSessionId.incrementAndGet();
-
-				@Override
-				public void run() {
-
-					try {
-						Thread.sleep(scanSeconds * 1000);
-					} catch (InterruptedException ignored) {
-					}
-
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							BluetoothAdapter btAdapter = getBluetoothAdapter();
-							// check current scan session was not stopped
-							if (scanSessionId.intValue() == currentScanSession) {
-								if (btAdapter.getState() == BluetoothAdapter.STATE_ON) {
-									btAdapter.stopLeScan(mLeScanCallback);
-								}
-								WritableMap map = Arguments.createMap();
-								bleManager.sendEvent("BleManagerStopScan", map);
-							}
-						}
-					});
+	public void scan(ReadableArray serviceUUIDs, final int scanSeconds, boolean allowDuplicates, ReadableMap options, Callback callback) {
+		// filters are evaluated in software from the raw advertising data
+		readDiscoveryOptions(serviceUUIDs, allowDuplicates, options);
+		startScanSession(scanSeconds, options);
+		callback.invoke();
+	}
 
-				}
+	@Override
+	protected void startScanning() {
+		getBluetoothAdapter().startLeScan(mLeScanCallback);
+	}
 
-			};
-			thread.start();
-		}
-		callback.invoke();
+	@Override
+	protected void stopScanning() {
+		getBluetoothAdapter().stopLeScan(mLeScanCallback);
 	}
 }
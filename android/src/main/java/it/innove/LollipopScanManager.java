@@ -2,129 +2,126 @@ package it.innove;
 
 
 import android.annotation.TargetApi;
-import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Build;
-import android.os.Bundle;
-import android.os.ParcelUuid;
 import android.util.Log;
 import com.facebook.react.bridge.*;
-import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import static com.facebook.react.bridge.UiThreadUtil.runOnUiThread;
+import java.util.Map;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class LollipopScanManager extends ScanManager {
 
+	private ScanSettings scanSettings;
+	private List<ScanFilter> scanFilters;
+
 	public LollipopScanManager(ReactApplicationContext reactContext, BleManager bleManager) {
 		super(reactContext, bleManager);
 	}
 
 	@Override
-	public void stopScan(Callback callback) {
-		// update scanSessionId to prevent stopping next scan by running timeout thread
-		scanSessionId.incrementAndGet();
+	public void scan(ReadableArray serviceUUIDs, final int scanSeconds, boolean allowDuplicates, ReadableMap options, Callback callback) {
+		ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder();
+		List<ScanFilter> filters = new ArrayList<>();
+
+		scanSettingsBuilder.setScanMode(options.getInt("scanMode"));
+		readDiscoveryOptions(serviceUUIDs, allowDuplicates, options);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			scanSettingsBuilder.setNumOfMatches(options.getInt("numberOfMatches"));
+			scanSettingsBuilder.setMatchMode(options.getInt("matchMode"));
+		}
+
+		if (options.hasKey("reportDelay") && options.getInt("reportDelay") > 0) {
+			if (getBluetoothAdapter().isOffloadedScanBatchingSupported()) {
+				scanSettingsBuilder.setReportDelay(options.getInt("reportDelay"));
+			} else {
+				Log.d(bleManager.LOG_TAG, "Batch scanning is not supported by this device");
+			}
+		}
 
-		getBluetoothAdapter().getBluetoothLeScanner().stopScan(mScanCallback);
+		for (int i = 0; i < serviceUUIDs.size(); i++) {
+			Log.d(bleManager.LOG_TAG, "Filter service: " + serviceUUIDs.getString(i));
+		}
+		advertisingFilter.buildScanFilters(filters);
+
+		scanSettings = scanSettingsBuilder.build();
+		scanFilters = filters;
+		startScanSession(scanSeconds, options);
 		callback.invoke();
 	}
 
-    @Override
-    public void scan(ReadableArray serviceUUIDs, final int scanSeconds, ReadableMap options,  Callback callback) {
-        ScanSettings.Builder scanSettingsBuilder = new ScanSettings.Builder();
-        List<ScanFilter> filters = new ArrayList<>();
-        
-        scanSettingsBuilder.setScanMode(options.getInt("scanMode"));
-        
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            scanSettingsBuilder.setNumOfMatches(options.getInt("numberOfMatches"));
-            scanSettingsBuilder.setMatchMode(options.getInt("matchMode"));
-        }
-        
-        if (serviceUUIDs.size() > 0) {
-            for(int i = 0; i < serviceUUIDs.size(); i++){
-				ScanFilter filter = new ScanFilter.Builder().setServiceUuid(new ParcelUuid(UUIDHelper.uuidFromString(serviceUUIDs.getString(i)))).build();
-                filters.add(filter);
-                Log.d(bleManager.LOG_TAG, "Filter service: " + serviceUUIDs.getString(i));
-            }
-        }
-        
-        getBluetoothAdapter().getBluetoothLeScanner().startScan(filters, scanSettingsBuilder.build(), mScanCallback);
-        if (scanSeconds > 0) {
-            Thread thread = new Thread() {
-                private int currentScanSession = scanSessionId.incrementAndGet();
-                
-                @Override
-                public void run() {
-                    
-                    try {
-                        Thread.sleep(scanSeconds * 1000);
-                    } catch (InterruptedException ignored) {
-                    }
-                    
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            BluetoothAdapter btAdapter = getBluetoothAdapter();
-                            // check current scan session was not stopped
-                            if (scanSessionId.intValue() == currentScanSession) {
-                                if(btAdapter.getState() == BluetoothAdapter.STATE_ON) {
-                                    btAdapter.getBluetoothLeScanner().stopScan(mScanCallback);
-                                }
-                                WritableMap map = Arguments.createMap();
-                                bleManager.sendEvent("BleManagerStopScan", map);
-                            }
-                        }
-                    });
-                    
-                }
-                
-            };
-            thread.start();
-        }
-        callback.invoke();
-    }
+	@Override
+	protected void startScanning() {
+		getBluetoothAdapter().getBluetoothLeScanner().startScan(scanFilters, scanSettings, mScanCallback);
+	}
+
+	@Override
+	protected void stopScanning() {
+		BluetoothLeScanner scanner = getBluetoothAdapter().getBluetoothLeScanner();
+		// deliver what the controller is still holding before stopping
+		scanner.flushPendingScanResults(mScanCallback);
+		scanner.stopScan(mScanCallback);
+	}
+
+	// returns null when the result is discarded by the advertising filter
+	private Peripheral processResult(ScanResult result) {
+		ScanRecord scanRecord = result.getScanRecord();
+		// the timestamp is when the controller received it, batched results are delivered later
+		long timestamp = result.getTimestampNanos() / 1000000;
+		return onAdvertisement(result.getDevice(), result.getRssi(), scanRecord != null ? scanRecord.getBytes() : null, timestamp);
+	}
 
 	private ScanCallback mScanCallback = new ScanCallback() {
 		@Override
 		public void onScanResult(final int callbackType, final ScanResult result) {
 
-			runOnUiThread(new Runnable() {
+			postResult(new Runnable() {
 				@Override
 				public void run() {
-					Log.i(bleManager.LOG_TAG, "DiscoverPeripheral: " + result.getDevice().getName());
-					String address = result.getDevice().getAddress();
-                    Peripheral peripheral = null;
-
-					if (!bleManager.peripherals.containsKey(address)) {
-						peripheral = new Peripheral(result.getDevice(), result.getRssi(), result.getScanRecord(), reactContext);
-						bleManager.peripherals.put(address, peripheral);
-					} else {
-						peripheral = bleManager.peripherals.get(address);
-						peripheral.updateRssi(result.getRssi());
-						peripheral.updateData(result.getScanRecord());
+					Peripheral peripheral = processResult(result);
+					if (peripheral != null) {
+						emitDiscovery(peripheral);
 					}
-
-					WritableMap map = peripheral.asWritableMap();
-					bleManager.sendEvent("BleManagerDiscoverPeripheral", map);
 				}
 			});
 		}
 
 		@Override
 		public void onBatchScanResults(final List<ScanResult> results) {
+
+			postResult(new Runnable() {
+				@Override
+				public void run() {
+					// the same peripheral can be reported several times in one batch
+					Map<String, Peripheral> batch = new LinkedHashMap<>();
+					for (ScanResult result : results) {
+						Peripheral peripheral = processResult(result);
+						if (peripheral != null) {
+							batch.put(result.getDevice().getAddress(), peripheral);
+						}
+					}
+					emitDiscoveries(batch.values());
+				}
+			});
 		}
 
 		@Override
 		public void onScanFailed(final int errorCode) {
-            WritableMap map = Arguments.createMap();
-            bleManager.sendEvent("BleManagerStopScan", map);
+			postResult(new Runnable() {
+				@Override
+				public void run() {
+					LollipopScanManager.this.onScanFailed(errorCode);
+				}
+			});
 		}
 	};
 }
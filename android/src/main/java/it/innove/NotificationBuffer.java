@@ -0,0 +1,140 @@
+package it.innove;
+
+/**
+ * NotificationBuffer is the ring of the values of a notification waiting to be emitted, with their receive time.
+ * A bounded ring applies the overflow policy when it is full. With acknowledgements a batch is only taken
+ * when JS has acknowledged the previous one, so a slow consumer fills the ring instead of the bridge queue.
+ */
+class NotificationBuffer {
+
+	public static final String DROP_OLDEST = "dropOldest";
+	public static final String DROP_NEWEST = "dropNewest";
+	public static final String LATEST = "latest";
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	// 0 for an unbounded ring
+	private final int capacity;
+	private final String overflowPolicy;
+	private final boolean acknowledged;
+
+	private byte[][] values;
+	private long[] timestamps;
+	private int head = 0;
+	private int size = 0;
+	private long dropped = 0;
+	private long droppedSinceTake = 0;
+	private boolean awaitingAck = false;
+
+	// throws IllegalArgumentException for an unknown overflowPolicy, the latest policy is a ring of one
+	NotificationBuffer(int capacity, String overflowPolicy, boolean acknowledged) {
+		if (LATEST.equals(overflowPolicy)) {
+			capacity = 1;
+		} else if (!DROP_OLDEST.equals(overflowPolicy) && !DROP_NEWEST.equals(overflowPolicy)) {
+			throw new IllegalArgumentException("Invalid overflowPolicy: " + overflowPolicy);
+		}
+		this.capacity = Math.max(capacity, 0);
+		this.overflowPolicy = overflowPolicy;
+		this.acknowledged = acknowledged;
+		values = new byte[this.capacity > 0 ? this.capacity : INITIAL_CAPACITY][];
+		timestamps = new long[values.length];
+	}
+
+	boolean isBounded() {
+		return capacity > 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	// a batch of maxCount values is ready, 0 when only the latency emits batches
+	boolean hasBatch(int maxCount) {
+		return maxCount > 0 && size >= maxCount;
+	}
+
+	boolean isAcknowledged() {
+		return acknowledged;
+	}
+
+	boolean isAwaitingAck() {
+		return awaitingAck;
+	}
+
+	void add(byte[] value, long timestamp) {
+		if (size == values.length) {
+			if (capacity == 0) {
+				grow();
+			} else {
+				dropped++;
+				droppedSinceTake++;
+				if (DROP_NEWEST.equals(overflowPolicy)) {
+					return;
+				}
+				values[head] = null;
+				head = (head + 1) % values.length;
+				size--;
+			}
+		}
+		int index = (head + size) % values.length;
+		values[index] = value;
+		timestamps[index] = timestamp;
+		size++;
+	}
+
+	private void grow() {
+		byte[][] grownValues = new byte[values.length * 2][];
+		long[] grownTimestamps = new long[values.length * 2];
+		for (int i = 0; i < size; i++) {
+			int index = (head + i) % values.length;
+			grownValues[i] = values[index];
+			grownTimestamps[i] = timestamps[index];
+		}
+		values = grownValues;
+		timestamps = grownTimestamps;
+		head = 0;
+	}
+
+	/**
+	 * Removes the oldest values, at most maxCount of them when it is greater than 0.
+	 * Returns null when the ring is empty or the previous batch is not acknowledged, unless force is set.
+	 */
+	Batch take(int maxCount, boolean force) {
+		if (size == 0 || (awaitingAck && !force)) {
+			return null;
+		}
+		int count = maxCount > 0 ? Math.min(maxCount, size) : size;
+		Batch batch = new Batch(count, droppedSinceTake, dropped);
+		for (int i = 0; i < count; i++) {
+			batch.values[i] = values[head];
+			batch.timestamps[i] = timestamps[head];
+			values[head] = null;
+			head = (head + 1) % values.length;
+		}
+		size -= count;
+		droppedSinceTake = 0;
+		awaitingAck = acknowledged;
+		return batch;
+	}
+
+	// returns true when values are waiting for the acknowledgement
+	boolean ack() {
+		awaitingAck = false;
+		return size > 0;
+	}
+
+	static class Batch {
+		final byte[][] values;
+		final long[] timestamps;
+		// the values lost since the previous batch and since the ring was created
+		final long dropped;
+		final long totalDropped;
+
+		Batch(int count, long dropped, long totalDropped) {
+			this.values = new byte[count][];
+			this.timestamps = new long[count];
+			this.dropped = dropped;
+			this.totalDropped = totalDropped;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package it.innove;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.UUID;
+
+/**
+ * NotificationSubscription holds the options of a notification started with startNotificationWithOptions.
+ * The values are buffered natively with their receive time and emitted from the scheduler thread,
+ * with batching they are emitted together in one event. With ack an event is only emitted once JS has
+ * acknowledged the previous one, a bounded buffer then applies the overflow policy when JS falls behind.
+ */
+public class NotificationSubscription {
+
+	// with only maxCount a batch still waits at most this long for its last values
+	private static final int DEFAULT_MAX_LATENCY_MS = 1000;
+
+	private final Peripheral peripheral;
+	private final String service;
+	private final String characteristic;
+	// values in one event and max time the first value waits, batching is disabled when both are 0
+	private final int maxCount;
+	private final int maxLatencyMs;
+	private final NotificationBuffer buffer;
+	// null when every notification is a value
+	private FrameAssembler frameAssembler;
+	private long reportedDiscarded = 0;
+
+	private boolean flushScheduled = false;
+
+	private NotificationSubscription(Peripheral peripheral, UUID serviceUUID, UUID characteristicUUID, int maxCount, int maxLatencyMs,
+									 NotificationBuffer buffer) {
+		this.peripheral = peripheral;
+		this.service = UUIDHelper.uuidToLongString(serviceUUID);
+		this.characteristic = UUIDHelper.uuidToLongString(characteristicUUID);
+		this.maxCount = maxCount;
+		this.maxLatencyMs = maxLatencyMs;
+		this.buffer = buffer;
+	}
+
+	// throws IllegalArgumentException for an unknown overflowPolicy or invalid framing
+	static NotificationSubscription fromOptions(Peripheral peripheral, UUID serviceUUID, UUID characteristicUUID, ReadableMap options) {
+		int maxCount = options.hasKey("maxCount") ? options.getInt("maxCount") : 0;
+		int maxLatencyMs = batchLatencyMs(maxCount, options.hasKey("maxLatencyMs") ? options.getInt("maxLatencyMs") : 0);
+		int bufferSize = options.hasKey("bufferSize") ? options.getInt("bufferSize") : 0;
+		String overflowPolicy = options.hasKey("overflowPolicy") ? options.getString("overflowPolicy") : NotificationBuffer.DROP_OLDEST;
+		boolean ack = options.hasKey("ack") && options.getBoolean("ack");
+		NotificationBuffer buffer = new NotificationBuffer(bufferSize, overflowPolicy, ack);
+		NotificationSubscription subscription = new NotificationSubscription(peripheral, serviceUUID, characteristicUUID, maxCount, maxLatencyMs, buffer);
+		if (options.hasKey("framing")) {
+			subscription.frameAssembler = FrameAssembler.fromOptions(options.getMap("framing"));
+		}
+		return subscription;
+	}
+
+	static int batchLatencyMs(int maxCount, int maxLatencyMs) {
+		if (maxCount > 1 && maxLatencyMs <= 0) {
+			return DEFAULT_MAX_LATENCY_MS;
+		}
+		return maxLatencyMs;
+	}
+
+	private boolean isBatching() {
+		return maxCount > 1 || maxLatencyMs > 0;
+	}
+
+	// called from the GATT callback thread, with framing the value is a fragment of a frame
+	public synchronized void onValue(byte[] value) {
+		if (frameAssembler == null) {
+			onFrame(value);
+			return;
+		}
+		for (byte[] frame : frameAssembler.append(value)) {
+			onFrame(frame);
+		}
+	}
+
+	private void onFrame(byte[] value) {
+		if (!isBatching() && !buffer.isBounded() && !buffer.isAcknowledged()) {
+			WritableMap map = newEventMap();
+			ByteEncoding.get().put(map, "value", value);
+			putDiscarded(map);
+			peripheral.sendEvent("BleManagerDidUpdateValueForCharacteristic", map);
+			return;
+		}
+
+		buffer.add(value, System.currentTimeMillis());
+
+		// the values wait in the buffer until JS acknowledges the previous event
+		if (buffer.isAwaitingAck()) {
+			return;
+		}
+		if (buffer.hasBatch(maxCount)) {
+			drain(false);
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			ScanManager.getScheduler().postDelayed(flusher, maxLatencyMs);
+		}
+	}
+
+	// JS has handled the previous event, the values buffered meanwhile are emitted now
+	public synchronized void ack() {
+		if (buffer.ack()) {
+			drain(false);
+		}
+	}
+
+	// emit the buffered values now, even if the previous event is not acknowledged, e.g. when the notification is stopped
+	public synchronized void flush() {
+		drain(true);
+	}
+
+	private void drain(boolean force) {
+		if (flushScheduled) {
+			ScanManager.getScheduler().removeCallbacks(flusher);
+			flushScheduled = false;
+		}
+
+		ByteEncoding encoding = ByteEncoding.get();
+		NotificationBuffer.Batch batch;
+		if (!isBatching()) {
+			// a bounded buffer without batching keeps one event per value
+			while ((batch = buffer.take(1, force)) != null) {
+				WritableMap map = newEventMap();
+				encoding.put(map, "value", batch.values[0]);
+				putDropped(map, batch);
+				putDiscarded(map);
+				peripheral.sendEvent("BleManagerDidUpdateValueForCharacteristic", map);
+			}
+			return;
+		}
+
+		// a stopped notification emits everything, the buffer can hold more than maxCount values
+		while ((batch = buffer.take(force ? 0 : maxCount, force)) != null) {
+			WritableArray valuesArray = Arguments.createArray();
+			WritableArray timestampsArray = Arguments.createArray();
+			for (int i = 0; i < batch.values.length; i++) {
+				encoding.push(valuesArray, batch.values[i]);
+				timestampsArray.pushDouble(batch.timestamps[i]);
+			}
+
+			WritableMap map = newEventMap();
+			map.putArray("values", valuesArray);
+			map.putArray("timestamps", timestampsArray);
+			putDropped(map, batch);
+			putDiscarded(map);
+			peripheral.sendEvent("BleManagerDidUpdateValuesForCharacteristic", map);
+		}
+	}
+
+	// emit the buffered values and drop a partial frame, e.g. when the peripheral disconnects
+	public synchronized void reset() {
+		flush();
+		if (frameAssembler != null) {
+			frameAssembler.reset();
+		}
+	}
+
+	// the values lost since the previous event, only sent once
+	private static void putDropped(WritableMap map, NotificationBuffer.Batch batch) {
+		if (batch.dropped > 0) {
+			map.putDouble("dropped", batch.dropped);
+			map.putDouble("totalDropped", batch.totalDropped);
+		}
+	}
+
+	// the bytes of the frames too large for the framing since the previous event, only sent once
+	private void putDiscarded(WritableMap map) {
+		if (frameAssembler == null) {
+			return;
+		}
+		long discarded = frameAssembler.getDiscarded();
+		if (discarded > reportedDiscarded) {
+			map.putDouble("discardedBytes", discarded - reportedDiscarded);
+			map.putDouble("totalDiscardedBytes", discarded);
+			reportedDiscarded = discarded;
+		}
+	}
+
+	private WritableMap newEventMap() {
+		WritableMap map = Arguments.createMap();
+		map.putString("peripheral", peripheral.getDevice().getAddress());
+		map.putString("characteristic", characteristic);
+		map.putString("service", service);
+		return map;
+	}
+
+	private Runnable flusher = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (NotificationSubscription.this) {
+				drain(false);
+			}
+		}
+	};
+}
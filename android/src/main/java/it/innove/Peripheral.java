@@ -1,15 +1,15 @@
 package it.innove;
 
-import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
-import android.bluetooth.le.ScanRecord;
+import android.content.Context;
 import android.os.Build;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Base64;
 import android.util.Log;
@@ -17,6 +17,7 @@ import android.util.Log;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.RCTNativeAppEventEmitter;
@@ -26,49 +27,76 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
 
 /**
  * Peripheral wraps the BluetoothDevice and provides methods to convert to JSON.
  */
-public class Peripheral extends BluetoothGattCallback {
+public class Peripheral extends BluetoothGattCallback implements PeripheralRegistry.Entry {
 
 	private static final String CHARACTERISTIC_NOTIFICATION_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+	private static final UUID SERVICE_CHANGED_UUID = UUIDHelper.uuidFromString("2A05");
 
 	private final BluetoothDevice device;
-	private ScanRecord advertisingData;
-	private byte[] advertisingDataBytes;
-	private int advertisingRSSI;
-	private boolean connected = false;
+	private volatile AdvertisingData advertisingData;
+	private volatile int advertisingRSSI;
+	private volatile boolean connected = false;
 	private ReactContext reactContext;
+	private volatile long lastSeen = SystemClock.elapsedRealtime();
+
+	// RSSI smoothing and distance estimation, null when disabled
+	private RssiFilter.Settings rssiFilterSettings;
+	private RssiFilter rssiFilter;
+	private volatile double filteredRssi;
+
+	// state of the last discovery event sent to JS
+	private boolean emitted = false;
+	private long lastEmittedTime;
+	private int lastEmittedRSSI;
+	private byte[] lastEmittedDataBytes;
+	// payload of the last full map sent with deltaUpdates, only used from the scan thread
+	private boolean fullMapSent = false;
+	private byte[] fullMapDataBytes;
 
 	private BluetoothGatt gatt;
 
 	private Callback connectCallback;
-	private Callback retrieveServicesCallback;
-	private Callback readCallback;
-	private Callback readRSSICallback;
-	private Callback writeCallback;
-	private Callback registerNotifyCallback;
-	private Callback requestMTUCallback;
-	private Callback readDescriptorCallback;
-	private Callback writeDescriptorCallback;
-
-	private List<byte[]> writeQueue = new ArrayList<>();
-
-	public Peripheral(BluetoothDevice device, int advertisingRSSI, byte[] scanRecord, ReactContext reactContext) {
-		this.device = device;
-		this.advertisingRSSI = advertisingRSSI;
-		this.advertisingDataBytes = scanRecord;
-		this.reactContext = reactContext;
-	}
 
-	public Peripheral(BluetoothDevice device, int advertisingRSSI, ScanRecord scanRecord, ReactContext reactContext) {
+	// ATT_MTU of the link, 23 until a bigger one is negotiated
+	public static final int DEFAULT_MTU = 23;
+	private volatile int mtu = DEFAULT_MTU;
+	// requested after every connection when greater than DEFAULT_MTU
+	private volatile int targetMtu = 0;
+
+	// GATT operations are executed one at a time, the next one starts when the GATT callback of the current one arrives
+	private static final long COMMAND_TIMEOUT_MS = 20000;
+	private static final long WRITE_PROGRESS_INTERVAL_MS = 100;
+	private final Object commandLock = new Object();
+	private final LinkedList<BLECommand> commandQueue = new LinkedList<>();
+	private BLECommand currentCommand;
+	private Runnable commandTimeout;
+
+	// characteristic lookups of the discovered services, null until they are discovered again
+	private volatile AttributeIndex attributeIndex;
+
+	// notifications started with options, the key is built by notificationKey
+	private final ConcurrentMap<String, NotificationSubscription> subscriptions = new ConcurrentHashMap<>();
+
+	// reconnection after a disconnection that was not requested, null to stay disconnected
+	private volatile ReconnectPolicy reconnectPolicy;
+	private ConnectionScheduler connectionScheduler;
+	private final ReconnectState reconnectState = new ReconnectState();
+	private Runnable reconnectTask;
+	// notifications enabled again after a reconnection, the key is built by notificationKey
+	private final ConcurrentMap<String, EnabledNotification> enabledNotifications = new ConcurrentHashMap<>();
+
+	public Peripheral(BluetoothDevice device, int advertisingRSSI, AdvertisingData advertisingData, ReactContext reactContext) {
 		this.device = device;
 		this.advertisingRSSI = advertisingRSSI;
-		this.advertisingData = scanRecord;
-		this.advertisingDataBytes = scanRecord.getBytes();
+		this.advertisingData = advertisingData;
 		this.reactContext = reactContext;
 	}
 
@@ -77,7 +105,7 @@ public class Peripheral extends BluetoothGattCallback {
 		this.reactContext = reactContext;
 	}
 
-	private void sendEvent(String eventName, @Nullable WritableMap params) {
+	void sendEvent(String eventName, @Nullable WritableMap params) {
 		reactContext
 				.getJSModule(RCTNativeAppEventEmitter.class)
 				.emit(eventName, params);
@@ -90,11 +118,16 @@ public class Peripheral extends BluetoothGattCallback {
 		Log.d(BleManager.LOG_TAG, "Peripheral event (" + eventName + "):" + device.getAddress());
 	}
 
-	public void connect(Callback callback, Activity activity) {
+	public void connect(Callback callback, Context context) {
 		if (!connected) {
+			cancelReconnectTask();
+			if (gatt != null) {
+				// the gatt of a background reconnection or of a previous attempt
+				gatt.close();
+			}
 			BluetoothDevice device = getDevice();
 			this.connectCallback = callback;
-			gatt = device.connectGatt(activity, false, this);
+			gatt = device.connectGatt(context, false, this);
 		} else {
 			if (gatt != null) {
 				callback.invoke();
@@ -104,9 +137,26 @@ public class Peripheral extends BluetoothGattCallback {
 		}
 	}
 
+	// give up a connection attempt that did not complete, its callback is not invoked
+	public void abortConnect() {
+		if (connected) {
+			return;
+		}
+		connectCallback = null;
+		if (gatt != null) {
+			gatt.disconnect();
+			gatt.close();
+			gatt = null;
+		}
+	}
+
 	public void disconnect() {
 		connectCallback = null;
+		stopReconnecting();
 		connected = false;
+		attributeIndex = null;
+		failCommands("Device disconnected");
+		clearSubscriptions();
 		if (gatt != null) {
 			try {
 				gatt.disconnect();
@@ -130,28 +180,33 @@ public class Peripheral extends BluetoothGattCallback {
 			map.putString("name", device.getName());
 			map.putString("id", device.getAddress()); // mac address
 			map.putInt("rssi", advertisingRSSI);
+			putFilteredRssi(map);
 
-			advertising.putMap("manufacturerData", byteArrayToWritableMap(advertisingDataBytes));
+			advertising.putMap("manufacturerData", byteArrayToWritableMap(getAdvertisingDataBytes()));
 			advertising.putBoolean("isConnectable", true);
-			advertising.putString("localName", device.getName());
 
-			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && advertisingData != null) {
+			if (advertisingData != null) {
+				String localName = advertisingData.getLocalName();
+				advertising.putString("localName", localName != null ? localName : device.getName());
+
 				WritableArray serviceUuids = Arguments.createArray();
-				if (advertisingData.getServiceUuids() != null && advertisingData.getServiceUuids().size() != 0) {
-					for (ParcelUuid uuid : advertisingData.getServiceUuids()) {
-						serviceUuids.pushString(UUIDHelper.uuidToString(uuid.getUuid()));
-					}
+				for (UUID uuid : advertisingData.getServiceUuids()) {
+					serviceUuids.pushString(UUIDHelper.uuidToString(uuid));
 				}
 				advertising.putArray("serviceUuids", serviceUuids);
 
 				WritableMap serviceData = Arguments.createMap();
-				if (advertisingData.getServiceData() != null) {
-					for (Map.Entry<ParcelUuid, byte[]> entry : advertisingData.getServiceData().entrySet()) {
-						serviceData.putMap(UUIDHelper.uuidToString(((ParcelUuid) entry.getKey()).getUuid()), byteArrayToWritableMap((byte[]) entry.getValue()));
-					}
+				for (Map.Entry<UUID, byte[]> entry : advertisingData.getServiceData().entrySet()) {
+					serviceData.putMap(UUIDHelper.uuidToString(entry.getKey()), byteArrayToWritableMap(entry.getValue()));
 				}
+				advertising.putMap("serviceData", serviceData);
 
 				advertising.putInt("txPowerLevel", advertisingData.getTxPowerLevel());
+				if (advertisingData.getFlags() >= 0) {
+					advertising.putInt("flags", advertisingData.getFlags());
+				}
+			} else {
+				advertising.putString("localName", device.getName());
 			}
 
 			map.putMap("advertising", advertising);
@@ -162,6 +217,36 @@ public class Peripheral extends BluetoothGattCallback {
 		return map;
 	}
 
+	private synchronized void putFilteredRssi(WritableMap map) {
+		if (rssiFilterSettings == null) {
+			return;
+		}
+		map.putDouble("filteredRssi", filteredRssi);
+		if (rssiFilterSettings.isDistanceEnabled()) {
+			int txPowerLevel = advertisingData != null ? advertisingData.getTxPowerLevel() : Integer.MIN_VALUE;
+			double distance = rssiFilterSettings.estimateDistance(filteredRssi, txPowerLevel);
+			if (distance >= 0) {
+				map.putDouble("distance", distance);
+			}
+		}
+	}
+
+	// the full map on the first call and when the payload changes, otherwise only what changes between advertisements
+	public WritableMap asDeltaWritableMap() {
+		byte[] dataBytes = getAdvertisingDataBytes();
+		if (!fullMapSent || !Arrays.equals(dataBytes, fullMapDataBytes)) {
+			fullMapSent = true;
+			fullMapDataBytes = dataBytes;
+			return asWritableMap();
+		}
+
+		WritableMap map = Arguments.createMap();
+		map.putString("id", device.getAddress());
+		map.putInt("rssi", advertisingRSSI);
+		putFilteredRssi(map);
+		return map;
+	}
+
 	public WritableMap asWritableMap(BluetoothGatt gatt) {
 		WritableMap map = asWritableMap();
 
@@ -231,8 +316,16 @@ public class Peripheral extends BluetoothGattCallback {
             return object;
         }
 		object.putString("CDVType", "ArrayBuffer");
-		object.putString("data", Base64.encodeToString(bytes, Base64.NO_WRAP));
-		object.putArray("bytes", BleManager.bytesToWritableArray(bytes));
+		ByteEncoding encoding = ByteEncoding.get();
+		if (encoding == ByteEncoding.HEX) {
+			object.putString("data", BleManager.bytesToHex(bytes));
+		} else {
+			object.putString("data", Base64.encodeToString(bytes, Base64.NO_WRAP));
+		}
+		// the numbers are only sent when asked for, they are the most expensive part of the map
+		if (encoding == ByteEncoding.ARRAY) {
+			object.putArray("bytes", BleManager.bytesToWritableArray(bytes));
+		}
 		return object;
 	}
 
@@ -240,10 +333,22 @@ public class Peripheral extends BluetoothGattCallback {
 		return connected;
 	}
 
+	// also true while a connection attempt is queued or running and while reconnecting, e.g. to keep it in the registry
+	public boolean isConnectedOrConnecting() {
+		ConnectionScheduler scheduler = connectionScheduler;
+		return connected || reconnectState.isReconnecting() || gatt != null || (scheduler != null && scheduler.isPending(device.getAddress()));
+	}
+
 	public BluetoothDevice getDevice() {
 		return device;
 	}
 
+	// only built by a successful service discovery, nothing is found before it or after the services changed
+	private AttributeIndex getAttributeIndex() {
+		AttributeIndex index = attributeIndex;
+		return index != null ? index : AttributeIndex.EMPTY;
+	}
+
 	public Boolean hasService(UUID uuid) {
 		if (gatt == null) {
 			return null;
@@ -254,10 +359,22 @@ public class Peripheral extends BluetoothGattCallback {
 	@Override
 	public void onServicesDiscovered(BluetoothGatt gatt, int status) {
 		super.onServicesDiscovered(gatt, status);
-		if (retrieveServicesCallback != null) {
-			WritableMap map = this.asWritableMap(gatt);
-			retrieveServicesCallback.invoke(null, map);
-			retrieveServicesCallback = null;
+
+		if (status == BluetoothGatt.GATT_SUCCESS) {
+			attributeIndex = new AttributeIndex(gatt.getServices());
+		}
+
+		synchronized (commandLock) {
+			BLECommand command = getCurrentCommand(BLECommand.RETRIEVE_SERVICES);
+			if (command == null) {
+				return;
+			}
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				command.getCallback().invoke(null, this.asWritableMap(gatt));
+			} else {
+				command.getCallback().invoke("Error discovering services status=" + status, null);
+			}
+			completeCommand();
 		}
 	}
 
@@ -271,9 +388,27 @@ public class Peripheral extends BluetoothGattCallback {
 		if (newState == BluetoothGatt.STATE_CONNECTED) {
 
 			connected = true;
+			mtu = DEFAULT_MTU;
+			attributeIndex = null;
+			boolean reconnected = reconnectState.onConnected();
 
 			sendConnectionEvent(device, "BleManagerConnectPeripheral");
 
+			// queued first, the operations requested after the connection use the new MTU
+			if (targetMtu > DEFAULT_MTU && Build.VERSION.SDK_INT >= LOLLIPOP) {
+				requestMTU(targetMtu, new Callback() {
+					@Override
+					public void invoke(Object... args) {
+						Log.d(BleManager.LOG_TAG, "Automatic MTU request on " + device.getAddress() + ": " + (args.length > 0 && args[0] != null ? args[0] : "MTU " + mtu));
+					}
+				});
+			}
+
+			if (reconnected) {
+				Log.d(BleManager.LOG_TAG, "Reconnected to: " + device.getAddress());
+				restoreNotifications();
+			}
+
 			if (connectCallback != null) {
 				Log.d(BleManager.LOG_TAG, "Connected to: " + device.getAddress());
 				connectCallback.invoke();
@@ -282,49 +417,110 @@ public class Peripheral extends BluetoothGattCallback {
 
 		} else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
 
-			if (connected) {
-				connected = false;
-
-				if (gatt != null) {
-					gatt.disconnect();
-					gatt.close();
-					this.gatt = null;
-				}
+			boolean dropped = connected;
+			connected = false;
+			ReconnectPolicy policy = reconnectPolicy;
+			if (dropped && policy != null) {
+				reconnectState.start();
+			}
+			boolean reconnecting = reconnectState.isReconnecting();
+
+			if (reconnecting && policy != null && policy.isAutoConnect() && gatt != null) {
+				// the stack connects again when the peripheral is in range, without a timeout
+				Log.d(BleManager.LOG_TAG, "Waiting for the background reconnection to: " + device.getAddress());
+				gatt.connect();
+			} else if (gatt != null) {
+				// also closed after a failed attempt, every open gatt holds one of the few client interfaces of the stack
+				gatt.disconnect();
+				gatt.close();
+				this.gatt = null;
 			}
 
 			sendConnectionEvent(device, "BleManagerDisconnectPeripheral");
-			List<Callback> callbacks = Arrays.asList(writeCallback, writeDescriptorCallback, retrieveServicesCallback, readRSSICallback, readCallback, readDescriptorCallback, registerNotifyCallback, requestMTUCallback);
-			for (Callback currentCallback : callbacks) {
-				if (currentCallback != null) {
-					currentCallback.invoke("Device disconnected");
-				}
-			}
+			attributeIndex = null;
+			failCommands("Device disconnected");
+			clearSubscriptions();
 			if (connectCallback != null) {
 				connectCallback.invoke("Connection error");
 				connectCallback = null;
 			}
-			writeCallback = null;
-			readCallback = null;
-			writeDescriptorCallback = null;
-			readDescriptorCallback = null;
-			retrieveServicesCallback = null;
-			readRSSICallback = null;
-			registerNotifyCallback = null;
-			requestMTUCallback = null;
+
+			if (reconnecting && policy == null) {
+				stopReconnecting();
+				reconnecting = false;
+			}
+			if (!reconnecting) {
+				enabledNotifications.clear();
+			} else if (dropped && !policy.isAutoConnect()) {
+				// the failed attempts are retried by the callback of scheduleReconnect
+				scheduleReconnect();
+			}
 		}
 
 	}
 
-	public void updateRssi(int rssi) {
+	public synchronized void updateRssi(int rssi) {
 		advertisingRSSI = rssi;
+		if (rssiFilter != null) {
+			filteredRssi = rssiFilter.update(rssi);
+		}
+	}
+
+	public synchronized void setRssiFilterSettings(RssiFilter.Settings settings) {
+		if (settings != rssiFilterSettings) {
+			rssiFilterSettings = settings;
+			rssiFilter = settings != null ? settings.newFilter() : null;
+			filteredRssi = advertisingRSSI;
+		}
 	}
 
-	public void updateData(byte[] data) {
-		advertisingDataBytes = data;
+	// the RSSI used to decide if a change is worth an event, smoothed when a filter is set
+	public synchronized int getReportedRSSI() {
+		return rssiFilter != null ? (int) Math.round(filteredRssi) : advertisingRSSI;
 	}
 
-	public void updateData(ScanRecord scanRecord) {
-		advertisingData = scanRecord;
+	public void updateData(AdvertisingData data) {
+		advertisingData = data;
+		lastSeen = SystemClock.elapsedRealtime();
+	}
+
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	public AdvertisingData getAdvertisingData() {
+		return advertisingData;
+	}
+
+	public int getAdvertisingRSSI() {
+		return advertisingRSSI;
+	}
+
+	public byte[] getAdvertisingDataBytes() {
+		return advertisingData != null ? advertisingData.getBytes() : null;
+	}
+
+	public void markEmitted(long time) {
+		emitted = true;
+		lastEmittedTime = time;
+		lastEmittedRSSI = getReportedRSSI();
+		lastEmittedDataBytes = getAdvertisingDataBytes();
+	}
+
+	public boolean hasBeenEmitted() {
+		return emitted;
+	}
+
+	public long getLastEmittedTime() {
+		return lastEmittedTime;
+	}
+
+	public int getLastEmittedRSSI() {
+		return lastEmittedRSSI;
+	}
+
+	public byte[] getLastEmittedDataBytes() {
+		return lastEmittedDataBytes;
 	}
 
 	public int unsignedToBytes(byte b) {
@@ -338,11 +534,24 @@ public class Peripheral extends BluetoothGattCallback {
 		byte[] dataValue = characteristic.getValue();
 		Log.d(BleManager.LOG_TAG, "Read: " + BleManager.bytesToHex(dataValue) + " from peripheral: " + device.getAddress());
 
+		if (SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+			// the handles are stale, the attributes are not found until the services are retrieved again
+			attributeIndex = null;
+		}
+
+		if (!subscriptions.isEmpty()) {
+			NotificationSubscription subscription = subscriptions.get(notificationKey(characteristic.getService().getUuid(), characteristic.getUuid()));
+			if (subscription != null) {
+				subscription.onValue(dataValue);
+				return;
+			}
+		}
+
 		WritableMap map = Arguments.createMap();
 		map.putString("peripheral", device.getAddress());
-		map.putString("characteristic", characteristic.getUuid().toString());
-		map.putString("service", characteristic.getService().getUuid().toString());
-		map.putArray("value", BleManager.bytesToWritableArray(dataValue));
+		map.putString("characteristic", UUIDHelper.uuidToLongString(characteristic.getUuid()));
+		map.putString("service", UUIDHelper.uuidToLongString(characteristic.getService().getUuid()));
+		ByteEncoding.get().put(map, "value", dataValue);
 		sendEvent("BleManagerDidUpdateValueForCharacteristic", map);
 	}
 
@@ -351,20 +560,17 @@ public class Peripheral extends BluetoothGattCallback {
 		super.onCharacteristicRead(gatt, characteristic, status);
 		Log.d(BleManager.LOG_TAG, "onCharacteristicRead " + characteristic);
 
-		if (readCallback != null) {
-
+		synchronized (commandLock) {
+			BLECommand command = getCurrentCommand(BLECommand.READ);
+			if (command == null) {
+				return;
+			}
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				byte[] dataValue = characteristic.getValue();
-
-				if (readCallback != null) {
-					readCallback.invoke(null, BleManager.bytesToWritableArray(dataValue));
-				}
+				command.getCallback().invoke(null, ByteEncoding.get().encode(characteristic.getValue()));
 			} else {
-				readCallback.invoke("Error reading " + characteristic.getUuid() + " status=" + status, null);
+				command.getCallback().invoke("Error reading " + characteristic.getUuid() + " status=" + status, null);
 			}
-
-			readCallback = null;
-
+			completeCommand();
 		}
 	}
 
@@ -372,70 +578,96 @@ public class Peripheral extends BluetoothGattCallback {
 	public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
 		super.onCharacteristicWrite(gatt, characteristic, status);
 
-		if (writeCallback != null) {
-
-			if (writeQueue.size() > 0) {
-				byte[] data = writeQueue.get(0);
-				writeQueue.remove(0);
-				doWrite(characteristic, data);
-			} else {
+		synchronized (commandLock) {
+			// it is called for the writes without response too, when the stack is ready for the next packet
+			final BLECommand command = currentCommand;
+			if (command == null || !command.isWrite()) {
+				Log.d(BleManager.LOG_TAG, "No write waiting for onCharacteristicWrite on peripheral: " + device.getAddress());
+				return;
+			}
 
-				if (status == BluetoothGatt.GATT_SUCCESS) {
-					writeCallback.invoke();
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				Log.e(BleManager.LOG_TAG, "Error onCharacteristicWrite:" + status);
+				command.getCallback().invoke("Error writing status: " + status);
+				completeCommand();
+			} else if (command.hasNextChunk()) {
+				sendWriteProgress(command, false);
+				if (command.isPaced()) {
+					// paced on the scheduler, neither the bridge nor the binder thread wait
+					ScanManager.getScheduler().postDelayed(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (commandLock) {
+								if (currentCommand == command) {
+									writeNextChunk(command);
+								}
+							}
+						}
+					}, command.getQueueSleepTime());
 				} else {
-					Log.e(BleManager.LOG_TAG, "Error onCharacteristicWrite:" + status);
-					writeCallback.invoke("Error writing status: " + status);
+					writeNextChunk(command);
 				}
-
-				writeCallback = null;
+			} else {
+				sendWriteProgress(command, true);
+				command.getCallback().invoke();
+				completeCommand();
 			}
-		} else {
-			Log.e(BleManager.LOG_TAG, "No callback on write");
 		}
 	}
 
 	@Override
-  public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-    super.onDescriptorRead(gatt, descriptor, status);
-    Log.d(BleManager.LOG_TAG, "onDescriptorRead: " + descriptor);
-
-    if (status == BluetoothGatt.GATT_SUCCESS) {
-      byte[] dataValue = descriptor.getValue();
-
-      if (readDescriptorCallback != null) {
-        readDescriptorCallback.invoke(null, BleManager.bytesToWritableArray(dataValue));
-      }
-    } else {
-      readDescriptorCallback.invoke("Error reading " + descriptor.getUuid() + " status=" + status, null);
-    }
-
-    readDescriptorCallback = null;
-  }
+	public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+		super.onDescriptorRead(gatt, descriptor, status);
+		Log.d(BleManager.LOG_TAG, "onDescriptorRead: " + descriptor);
+
+		synchronized (commandLock) {
+			BLECommand command = getCurrentCommand(BLECommand.READ_DESCRIPTOR);
+			if (command == null) {
+				return;
+			}
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				command.getCallback().invoke(null, ByteEncoding.get().encode(descriptor.getValue()));
+			} else {
+				command.getCallback().invoke("Error reading " + descriptor.getUuid() + " status=" + status, null);
+			}
+			completeCommand();
+		}
+	}
 
-  @Override
+	@Override
 	public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
 		super.onDescriptorWrite(gatt, descriptor, status);
-
 		Log.d(BleManager.LOG_TAG, "onDescriptorWrite: " + descriptor.getUuid().toString());
 
-		if (descriptor.getUuid().equals(UUIDHelper.uuidFromString(CHARACTERISTIC_NOTIFICATION_CONFIG))) {
-			if (registerNotifyCallback != null) {
+		synchronized (commandLock) {
+			BLECommand command = currentCommand;
+			if (command == null) {
+				Log.d(BleManager.LOG_TAG, "No command waiting for onDescriptorWrite");
+				return;
+			}
+
+			if (command.getType() == BLECommand.REGISTER_NOTIFY || command.getType() == BLECommand.REMOVE_NOTIFY) {
 				if (status == BluetoothGatt.GATT_SUCCESS) {
-					registerNotifyCallback.invoke();
+					command.getCallback().invoke();
 				} else {
-					registerNotifyCallback.invoke("Error writing descriptor stats=" + status, null);
+					command.getCallback().invoke("Error writing descriptor stats=" + status, null);
 				}
-				registerNotifyCallback = null;
-			}
-		}
-		else {
-			if (writeDescriptorCallback != null) {
-				if (status == BluetoothGatt.GATT_SUCCESS) {
-					writeDescriptorCallback.invoke();
+				completeCommand();
+			} else if (command.getType() == BLECommand.WRITE_DESCRIPTOR) {
+				if (status != BluetoothGatt.GATT_SUCCESS) {
+					command.getCallback().invoke("Error writing descriptor stats=" + status, null);
+					completeCommand();
+				} else if (command.hasNextChunk()) {
+					if (doWrite(descriptor, command.nextChunk())) {
+						scheduleTimeout(command);
+					} else {
+						command.getCallback().invoke("Write failed");
+						completeCommand();
+					}
 				} else {
-					writeDescriptorCallback.invoke("Error writing descriptor stats=" + status, null);
+					command.getCallback().invoke();
+					completeCommand();
 				}
-				writeDescriptorCallback = null;
 			}
 		}
 	}
@@ -443,248 +675,493 @@ public class Peripheral extends BluetoothGattCallback {
 	@Override
 	public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
 		super.onReadRemoteRssi(gatt, rssi, status);
-		if (readRSSICallback != null) {
+
+		synchronized (commandLock) {
+			BLECommand command = getCurrentCommand(BLECommand.READ_RSSI);
+			if (command == null) {
+				return;
+			}
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 				updateRssi(rssi);
-				readRSSICallback.invoke(null, rssi);
+				command.getCallback().invoke(null, rssi);
 			} else {
-				readRSSICallback.invoke("Error reading RSSI status=" + status, null);
+				command.getCallback().invoke("Error reading RSSI status=" + status, null);
 			}
+			completeCommand();
+		}
+	}
 
-			readRSSICallback = null;
+	// must hold commandLock
+	private void writeNextChunk(BLECommand command) {
+		if (doWrite(command.getCharacteristic(), command.nextChunk())) {
+			scheduleTimeout(command);
+		} else {
+			command.getCallback().invoke("Write failed");
+			completeCommand();
 		}
 	}
 
-	private void setNotify(UUID serviceUUID, UUID characteristicUUID, Boolean notify, Callback callback) {
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
+	// progress of the writes split in chunks, at most one event every WRITE_PROGRESS_INTERVAL_MS
+	private void sendWriteProgress(BLECommand command, boolean done) {
+		if (!command.reportProgress(SystemClock.elapsedRealtime(), done, WRITE_PROGRESS_INTERVAL_MS)) {
 			return;
 		}
-		Log.d(BleManager.LOG_TAG, "setNotify");
 
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null");
-			return;
+		WritableMap map = Arguments.createMap();
+		map.putString("peripheral", device.getAddress());
+		map.putString("service", UUIDHelper.uuidToLongString(command.getServiceUUID()));
+		map.putString("characteristic", UUIDHelper.uuidToLongString(command.getCharacteristicUUID()));
+		map.putInt("bytesWritten", command.getBytesSent());
+		map.putInt("totalBytes", command.getData().length);
+		sendEvent("BleManagerWriteProgress", map);
+	}
+
+	// the running command if it has this type, null otherwise
+	private BLECommand getCurrentCommand(int type) {
+		if (currentCommand == null || currentCommand.getType() != type) {
+			Log.d(BleManager.LOG_TAG, "No command waiting for this GATT callback on peripheral: " + device.getAddress());
+			return null;
 		}
+		return currentCommand;
+	}
 
-    	if (registerNotifyCallback != null) {
-			callback.invoke("Cannot set notification, already writing descriptor");
+	private void enqueue(BLECommand command) {
+		if (!isConnected()) {
+			command.getCallback().invoke("Device is not connected", null);
 			return;
-    	}
+		}
+		synchronized (commandLock) {
+			commandQueue.add(command);
+			processQueue();
+		}
+	}
 
-		BluetoothGattService service = gatt.getService(serviceUUID);
-		BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
+	// the commands enqueued by the runnable run back to back
+	void enqueueAtomically(Runnable enqueuer) {
+		synchronized (commandLock) {
+			enqueuer.run();
+		}
+	}
 
-		if (characteristic != null) {
-			if (gatt.setCharacteristicNotification(characteristic, notify)) {
+	// start the next commands until one waits for a GATT callback, must hold commandLock
+	private void processQueue() {
+		while (currentCommand == null && !commandQueue.isEmpty()) {
+			BLECommand command = commandQueue.poll();
+			if (gatt == null) {
+				command.getCallback().invoke("BluetoothGatt is null", null);
+				continue;
+			}
 
-				BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUIDHelper.uuidFromString(CHARACTERISTIC_NOTIFICATION_CONFIG));
-				if (descriptor != null) {
+			currentCommand = command;
+			boolean waiting;
+			try {
+				waiting = execute(command);
+			} catch (Exception e) {
+				Log.d(BleManager.LOG_TAG, "Error executing GATT operation", e);
+				command.getCallback().invoke("Error: " + e.getMessage(), null);
+				waiting = false;
+			}
+			if (waiting) {
+				scheduleTimeout(command);
+			} else {
+				currentCommand = null;
+			}
+		}
+	}
 
-					// Prefer notify over indicate
-					if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-						Log.d(BleManager.LOG_TAG, "Characteristic " + characteristicUUID + " set NOTIFY");
-						descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-					} else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
-						Log.d(BleManager.LOG_TAG, "Characteristic " + characteristicUUID + " set INDICATE");
-						descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-					} else {
-						Log.d(BleManager.LOG_TAG, "Characteristic " + characteristicUUID + " does not have NOTIFY or INDICATE property set");
-					}
+	// must hold commandLock
+	private void completeCommand() {
+		cancelTimeout();
+		currentCommand = null;
+		processQueue();
+	}
 
-					try {
-						if (gatt.writeDescriptor(descriptor)) {
-							Log.d(BleManager.LOG_TAG, "setNotify complete");
-							registerNotifyCallback = callback;
-						} else {
-							callback.invoke("Failed to set client characteristic notification for " + characteristicUUID);
-						}
-					} catch (Exception e) {
-						Log.d(BleManager.LOG_TAG, "Error on setNotify", e);
-						callback.invoke("Failed to set client characteristic notification for " + characteristicUUID + ", error: " + e.getMessage());
+	// a peripheral that never answers must not block the queue forever
+	private void scheduleTimeout(final BLECommand command) {
+		cancelTimeout();
+		commandTimeout = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (commandLock) {
+					if (currentCommand == command) {
+						Log.d(BleManager.LOG_TAG, "GATT operation timed out on peripheral: " + device.getAddress());
+						command.getCallback().invoke("Operation timed out", null);
+						completeCommand();
 					}
-
-				} else {
-					callback.invoke("Set notification failed for " + characteristicUUID);
 				}
-
-			} else {
-				callback.invoke("Failed to register notification for " + characteristicUUID);
 			}
+		};
+		ScanManager.getScheduler().postDelayed(commandTimeout, COMMAND_TIMEOUT_MS);
+	}
 
-		} else {
-			callback.invoke("Characteristic " + characteristicUUID + " not found");
+	private void cancelTimeout() {
+		if (commandTimeout != null) {
+			ScanManager.getScheduler().removeCallbacks(commandTimeout);
+			commandTimeout = null;
 		}
-
 	}
 
-	public void registerNotify(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
-		Log.d(BleManager.LOG_TAG, "registerNotify");
-		this.setNotify(serviceUUID, characteristicUUID, true, callback);
+	// fail the running and the queued commands, e.g. when the peripheral is disconnected
+	private void failCommands(String error) {
+		List<BLECommand> failed = new ArrayList<>();
+		synchronized (commandLock) {
+			cancelTimeout();
+			if (currentCommand != null) {
+				failed.add(currentCommand);
+				currentCommand = null;
+			}
+			failed.addAll(commandQueue);
+			commandQueue.clear();
+		}
+		for (BLECommand command : failed) {
+			command.getCallback().invoke(error);
+		}
 	}
 
-	public void removeNotify(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
-		Log.d(BleManager.LOG_TAG, "removeNotify");
-		this.setNotify(serviceUUID, characteristicUUID, false, callback);
+	// returns true when the command waits for a GATT callback, otherwise its callback has already been invoked
+	private boolean execute(BLECommand command) {
+		switch (command.getType()) {
+			case BLECommand.READ:
+				return executeRead(command);
+			case BLECommand.READ_DESCRIPTOR:
+				return executeReadDescriptor(command);
+			case BLECommand.WRITE_DESCRIPTOR:
+				return executeWriteDescriptor(command);
+			case BLECommand.REGISTER_NOTIFY:
+				return executeSetNotify(command, true);
+			case BLECommand.REMOVE_NOTIFY:
+				return executeSetNotify(command, false);
+			case BLECommand.READ_RSSI:
+				if (!gatt.readRemoteRssi()) {
+					command.getCallback().invoke("Read RSSI failed", null);
+					return false;
+				}
+				return true;
+			case BLECommand.REQUEST_MTU:
+				if (Build.VERSION.SDK_INT < LOLLIPOP) {
+					command.getCallback().invoke("Requesting MTU requires at least API level 21", null);
+					return false;
+				}
+				if (!gatt.requestMtu(command.getMtu())) {
+					command.getCallback().invoke("Request MTU failed", null);
+					return false;
+				}
+				return true;
+			case BLECommand.RETRIEVE_SERVICES:
+				if (!gatt.discoverServices()) {
+					command.getCallback().invoke("Discover services failed", null);
+					return false;
+				}
+				return true;
+			default:
+				if (command.isWrite()) {
+					return executeWrite(command);
+				}
+				command.getCallback().invoke("Unknown operation " + command.getType(), null);
+				return false;
+		}
 	}
 
-	// Some devices reuse UUIDs across characteristics, so we can't use service.getCharacteristic(characteristicUUID)
-	// instead check the UUID and properties for each characteristic in the service until we find the best match
-	// This function prefers Notify over Indicate
-	private BluetoothGattCharacteristic findNotifyCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
+	private boolean executeSetNotify(BLECommand command, boolean notify) {
+		Log.d(BleManager.LOG_TAG, "setNotify");
+		Callback callback = command.getCallback();
+		UUID characteristicUUID = command.getCharacteristicUUID();
 
-		try {
-			// Check for Notify first
-			List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-			for (BluetoothGattCharacteristic characteristic : characteristics) {
-				if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-					return characteristic;
-				}
-			}
+		BluetoothGattCharacteristic characteristic = getAttributeIndex().findNotifyCharacteristic(command.getServiceUUID(), characteristicUUID);
+		if (characteristic == null) {
+			callback.invoke("Characteristic " + characteristicUUID + " not found");
+			return false;
+		}
+		if (!gatt.setCharacteristicNotification(characteristic, notify)) {
+			callback.invoke("Failed to register notification for " + characteristicUUID);
+			return false;
+		}
 
-			// If there wasn't Notify Characteristic, check for Indicate
-			for (BluetoothGattCharacteristic characteristic : characteristics) {
-				if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-					return characteristic;
-				}
-			}
+		BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUIDHelper.uuidFromString(CHARACTERISTIC_NOTIFICATION_CONFIG));
+		if (descriptor == null) {
+			callback.invoke("Set notification failed for " + characteristicUUID);
+			return false;
+		}
 
-			// As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-			return service.getCharacteristic(characteristicUUID);
-		} catch (Exception e) {
-			Log.e(BleManager.LOG_TAG, "Errore su caratteristica " + characteristicUUID, e);
-			return null;
+		// Prefer notify over indicate
+		if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+			Log.d(BleManager.LOG_TAG, "Characteristic " + characteristicUUID + " set NOTIFY");
+			descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+		} else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+			Log.d(BleManager.LOG_TAG, "Characteristic " + characteristicUUID + " set INDICATE");
+			descriptor.setValue(notify ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+		} else {
+			Log.d(BleManager.LOG_TAG, "Characteristic " + characteristicUUID + " does not have NOTIFY or INDICATE property set");
+		}
+
+		if (!gatt.writeDescriptor(descriptor)) {
+			callback.invoke("Failed to set client characteristic notification for " + characteristicUUID);
+			return false;
 		}
+		return true;
 	}
 
-	public void read(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
+	private boolean executeRead(BLECommand command) {
+		BluetoothGattCharacteristic characteristic = getAttributeIndex().findReadableCharacteristic(command.getServiceUUID(), command.getCharacteristicUUID());
 
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
-			return;
+		if (characteristic == null) {
+			command.getCallback().invoke("Characteristic " + command.getCharacteristicUUID() + " not found.", null);
+			return false;
 		}
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null", null);
-			return;
+		if (!gatt.readCharacteristic(characteristic)) {
+			command.getCallback().invoke("Read failed", null);
+			return false;
 		}
+		return true;
+	}
 
-		BluetoothGattService service = gatt.getService(serviceUUID);
-		BluetoothGattCharacteristic characteristic = findReadableCharacteristic(service, characteristicUUID);
+	private boolean executeReadDescriptor(BLECommand command) {
+		BluetoothGattDescriptor descriptor = getAttributeIndex().findReadableDescriptor(command.getServiceUUID(), command.getCharacteristicUUID(), command.getDescriptorUUID());
 
-		if (characteristic == null) {
-			callback.invoke("Characteristic " + characteristicUUID + " not found.", null);
-		} else {
-			readCallback = callback;
-			if (!gatt.readCharacteristic(characteristic)) {
-				readCallback = null;
-				callback.invoke("Read failed", null);
-			}
+		if (descriptor == null) {
+			command.getCallback().invoke("Descriptor " + command.getDescriptorUUID() + " not found.", null);
+			return false;
 		}
+		if (!gatt.readDescriptor(descriptor)) {
+			command.getCallback().invoke("Read failed", null);
+			return false;
+		}
+		return true;
 	}
 
-	public void readDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, Callback callback) {
+	private boolean executeWrite(BLECommand command) {
+		Callback callback = command.getCallback();
+		int writeType = command.getType();
+		BluetoothGattCharacteristic characteristic = getAttributeIndex().findWritableCharacteristic(command.getServiceUUID(), command.getCharacteristicUUID(), writeType);
 
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
-			return;
+		if (characteristic == null) {
+			callback.invoke("Characteristic " + command.getCharacteristicUUID() + " not found.");
+			return false;
 		}
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null", null);
-			return;
+		characteristic.setWriteType(writeType);
+		command.setCharacteristic(characteristic);
+		command.setDefaultChunkSize(BLECommand.chunkSizeForMtu(mtu));
+
+		// the next chunks are written from onCharacteristicWrite
+		if (!doWrite(characteristic, command.nextChunk())) {
+			callback.invoke("Write failed");
+			return false;
 		}
+		return true;
+	}
 
-		BluetoothGattService service = gatt.getService(serviceUUID);
-		BluetoothGattDescriptor descriptor = findReadableDescriptor(service, characteristicUUID, descriptorUUID);
+	private boolean executeWriteDescriptor(BLECommand command) {
+		Log.d(BleManager.LOG_TAG, "writeDescriptor: descriptorUUID=" + command.getDescriptorUUID());
+		BluetoothGattDescriptor descriptor = getAttributeIndex().findWritableDescriptor(command.getServiceUUID(), command.getCharacteristicUUID(), command.getDescriptorUUID());
 
 		if (descriptor == null) {
-			callback.invoke("Descriptor " + descriptorUUID + " not found.", null);
-		} else {
-			readDescriptorCallback = callback;
-			if (!gatt.readDescriptor(descriptor)) {
-				readDescriptorCallback = null;
-				callback.invoke("Read failed", null);
-			}
+			command.getCallback().invoke("Descriptor " + command.getDescriptorUUID() + " not found.");
+			return false;
 		}
+		command.setDefaultChunkSize(BLECommand.chunkSizeForMtu(mtu));
+		// the next chunks are written from onDescriptorWrite
+		if (!doWrite(descriptor, command.nextChunk())) {
+			command.getCallback().invoke("Write failed");
+			return false;
+		}
+		return true;
 	}
 
-	public void readRSSI(Callback callback) {
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
+	private static String notificationKey(UUID serviceUUID, UUID characteristicUUID) {
+		return UUIDHelper.attributeKey(serviceUUID, characteristicUUID);
+	}
+
+	// emit what the subscriptions are still buffering and forget them
+	private void clearSubscriptions() {
+		for (NotificationSubscription subscription : subscriptions.values()) {
+			subscription.reset();
+		}
+		subscriptions.clear();
+	}
+
+	// set by every connect, policy is null to stay disconnected after a disconnection;
+	// a reconnection in progress is stopped, the new connection replaces it and its notifications are not restored
+	public void setReconnectPolicy(ReconnectPolicy policy, ConnectionScheduler scheduler) {
+		if (reconnectState.isReconnecting()) {
+			stopReconnecting();
+		}
+		this.reconnectPolicy = policy;
+		this.connectionScheduler = scheduler;
+	}
+
+	private synchronized void scheduleReconnect() {
+		int reconnectAttempt = reconnectState.nextAttempt();
+		if (reconnectAttempt == 0) {
 			return;
 		}
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null", null);
+		ReconnectPolicy policy = reconnectPolicy;
+		if (policy == null || !policy.canRetry(reconnectAttempt)) {
+			Log.d(BleManager.LOG_TAG, "Giving up reconnecting to: " + device.getAddress());
+			WritableMap map = Arguments.createMap();
+			map.putString("peripheral", device.getAddress());
+			map.putInt("attempts", reconnectAttempt - 1);
+			stopReconnecting();
+			sendEvent("BleManagerReconnectFailed", map);
 			return;
 		}
 
-		readRSSICallback = callback;
+		long delay = policy.delayMs(reconnectAttempt);
+		WritableMap map = Arguments.createMap();
+		map.putString("peripheral", device.getAddress());
+		map.putInt("attempt", reconnectAttempt);
+		map.putDouble("delayMs", delay);
+		sendEvent("BleManagerReconnectingPeripheral", map);
+
+		reconnectTask = new Runnable() {
+			@Override
+			public void run() {
+				if (!reconnectState.isReconnecting()) {
+					return;
+				}
+				// queued like the other connections so a fleet reconnecting together respects the limit
+				connectionScheduler.connect(Peripheral.this, reactContext, 0, -1, new Callback() {
+					@Override
+					public void invoke(Object... args) {
+						if (args.length > 0 && args[0] != null) {
+							Log.d(BleManager.LOG_TAG, "Reconnection attempt to " + device.getAddress() + " failed: " + args[0]);
+							scheduleReconnect();
+						}
+					}
+				});
+			}
+		};
+		ScanManager.getScheduler().postDelayed(reconnectTask, delay);
+	}
 
-		if (!gatt.readRemoteRssi()) {
-			readCallback = null;
-			callback.invoke("Read RSSI failed", null);
+	private synchronized void cancelReconnectTask() {
+		if (reconnectTask != null) {
+			ScanManager.getScheduler().removeCallbacks(reconnectTask);
+			reconnectTask = null;
 		}
 	}
 
-	public void retrieveServices(Callback callback) {
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
+	private synchronized void stopReconnecting() {
+		cancelReconnectTask();
+		reconnectState.stop();
+		enabledNotifications.clear();
+	}
+
+	// services are discovered again before the notifications, in the queue after the automatic MTU request
+	private void restoreNotifications() {
+		if (enabledNotifications.isEmpty()) {
 			return;
 		}
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null", null);
-			return;
+		retrieveServices(new Callback() {
+			@Override
+			public void invoke(Object... args) {
+				if (args.length > 0 && args[0] != null) {
+					Log.d(BleManager.LOG_TAG, "Service discovery after the reconnection to " + device.getAddress() + " failed: " + args[0]);
+				}
+			}
+		});
+		for (final EnabledNotification notification : enabledNotifications.values()) {
+			if (notification.subscription != null) {
+				subscriptions.put(notificationKey(notification.serviceUUID, notification.characteristicUUID), notification.subscription);
+			}
+			enqueue(new BLECommand(notification.serviceUUID, notification.characteristicUUID, null, null, BLECommand.REGISTER_NOTIFY, new Callback() {
+				@Override
+				public void invoke(Object... args) {
+					if (args.length > 0 && args[0] != null) {
+						Log.d(BleManager.LOG_TAG, "Notification of " + notification.characteristicUUID + " not restored: " + args[0]);
+					}
+				}
+			}));
 		}
-		this.retrieveServicesCallback = callback;
-
-		gatt.discoverServices();
 	}
 
+	public void registerNotify(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
+		registerNotify(serviceUUID, characteristicUUID, null, callback);
+	}
 
-	// Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
-	// and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-	private BluetoothGattCharacteristic findReadableCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-
-		if (service != null) {
-			int read = BluetoothGattCharacteristic.PROPERTY_READ;
+	// options is null for the plain notification, one event per value
+	public void registerNotify(UUID serviceUUID, UUID characteristicUUID, ReadableMap options, final Callback callback) {
+		Log.d(BleManager.LOG_TAG, "registerNotify");
+		final String key = notificationKey(serviceUUID, characteristicUUID);
+		NotificationSubscription parsed = null;
+		NotificationSubscription previous;
+		if (options != null) {
+			try {
+				parsed = NotificationSubscription.fromOptions(this, serviceUUID, characteristicUUID, options);
+			} catch (IllegalArgumentException e) {
+				callback.invoke(e.getMessage());
+				return;
+			}
+			// added before the CCCD write, the first values can arrive before its callback
+			previous = subscriptions.put(key, parsed);
+		} else {
+			previous = subscriptions.remove(key);
+		}
+		if (previous != null) {
+			previous.flush();
+		}
 
-			List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-			for (BluetoothGattCharacteristic characteristic : characteristics) {
-				if ((characteristic.getProperties() & read) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-					return characteristic;
+		final NotificationSubscription subscription = parsed;
+		final EnabledNotification notification = new EnabledNotification(serviceUUID, characteristicUUID, subscription);
+		enabledNotifications.put(key, notification);
+		enqueue(new BLECommand(serviceUUID, characteristicUUID, null, null, BLECommand.REGISTER_NOTIFY, new Callback() {
+			@Override
+			public void invoke(Object... args) {
+				if (args.length > 0 && args[0] != null) {
+					enabledNotifications.remove(key, notification);
+					if (subscription != null && subscriptions.remove(key, subscription)) {
+						subscription.reset();
+					}
 				}
+				callback.invoke(args);
 			}
+		}));
+	}
 
-			// As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-			return service.getCharacteristic(characteristicUUID);
+	// the previous event of a notification started with ack was handled by JS
+	public void ackNotification(UUID serviceUUID, UUID characteristicUUID) {
+		NotificationSubscription subscription = subscriptions.get(notificationKey(serviceUUID, characteristicUUID));
+		if (subscription != null) {
+			subscription.ack();
 		}
+	}
 
-		return null;
+	public void removeNotify(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
+		Log.d(BleManager.LOG_TAG, "removeNotify");
+		enabledNotifications.remove(notificationKey(serviceUUID, characteristicUUID));
+		NotificationSubscription subscription = subscriptions.remove(notificationKey(serviceUUID, characteristicUUID));
+		if (subscription != null) {
+			subscription.flush();
+		}
+		enqueue(new BLECommand(serviceUUID, characteristicUUID, null, null, BLECommand.REMOVE_NOTIFY, callback));
 	}
 
-  private BluetoothGattDescriptor findReadableDescriptor(BluetoothGattService service, UUID characteristicUUID, UUID descriptorUUID) {
+	public void read(UUID serviceUUID, UUID characteristicUUID, Callback callback) {
+		enqueue(new BLECommand(serviceUUID, characteristicUUID, null, null, BLECommand.READ, callback));
+	}
 
-    if (service == null) {
-      return null;
-    }
+	public void readDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, Callback callback) {
+		enqueue(new BLECommand(serviceUUID, characteristicUUID, descriptorUUID, null, BLECommand.READ_DESCRIPTOR, callback));
+	}
 
-    BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
-    if (characteristic == null)
-    {
-      return null;
-    }
+	public void readRSSI(Callback callback) {
+		enqueue(new BLECommand(BLECommand.READ_RSSI, callback));
+	}
 
-    List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
-    for (BluetoothGattDescriptor descriptor : descriptors) {
-      if (((descriptor.getPermissions() & BluetoothGattDescriptor.PERMISSION_READ) != 0) && 
-          descriptorUUID.equals(descriptor.getUuid())) {
-        return descriptor;
-      }
-    }
+	public void retrieveServices(Callback callback) {
+		enqueue(new BLECommand(BLECommand.RETRIEVE_SERVICES, callback));
+	}
 
-    // As a last resort, try and find ANY descriptor with this UUID, 
-    // even if it doesn't have the correct properties
-    return characteristic.getDescriptor(descriptorUUID);
-  }
+	public void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, Integer maxByteSize, Integer queueSleepTime, Callback callback, int writeType) {
+		BLECommand command = new BLECommand(serviceUUID, characteristicUUID, null, data, writeType, callback);
+		command.setChunking(maxByteSize != null ? maxByteSize : 0, queueSleepTime != null ? queueSleepTime : 0);
+		enqueue(command);
+	}
+
+	public void writeDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] data, Integer maxByteSize, Integer queueSleepTime, Callback callback) {
+		BLECommand command = new BLECommand(serviceUUID, characteristicUUID, descriptorUUID, data, BLECommand.WRITE_DESCRIPTOR, callback);
+		command.setChunking(maxByteSize != null ? maxByteSize : 0, queueSleepTime != null ? queueSleepTime : 0);
+		enqueue(command);
+	}
 
 
 	public boolean doWrite(BluetoothGattCharacteristic characteristic, byte[] data) {
@@ -707,186 +1184,6 @@ public class Peripheral extends BluetoothGattCallback {
 		return true;
 	}
 
-	public void write(UUID serviceUUID, UUID characteristicUUID, byte[] data, Integer maxByteSize, Integer queueSleepTime, Callback callback, int writeType) {
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
-			return;
-		}
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null");
-		} else {
-			BluetoothGattService service = gatt.getService(serviceUUID);
-			BluetoothGattCharacteristic characteristic = findWritableCharacteristic(service, characteristicUUID, writeType);
-
-			if (characteristic == null) {
-				callback.invoke("Characteristic " + characteristicUUID + " not found.");
-			} else {
-				characteristic.setWriteType(writeType);
-
-				if (writeQueue.size() > 0) {
-					callback.invoke("You have already an queued message");
-				}
-
-				if (writeCallback != null) {
-					callback.invoke("You're already writing");
-				}
-
-				if (writeQueue.size() == 0 && writeCallback == null) {
-
-					if (BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT == writeType) {
-						writeCallback = callback;
-					}
-
-					if (data.length > maxByteSize) {
-						int dataLength = data.length;
-						int count = 0;
-						byte[] firstMessage = null;
-						List<byte[]> splittedMessage = new ArrayList<>();
-
-						while (count < dataLength && (dataLength - count > maxByteSize)) {
-							if (count == 0) {
-								firstMessage = Arrays.copyOfRange(data, count, count + maxByteSize);
-							} else {
-								byte[] splitMessage = Arrays.copyOfRange(data, count, count + maxByteSize);
-								splittedMessage.add(splitMessage);
-							}
-							count += maxByteSize;
-						}
-						if (count < dataLength) {
-							// Other bytes in queue
-							byte[] splitMessage = Arrays.copyOfRange(data, count, data.length);
-							splittedMessage.add(splitMessage);
-						}
-
-						if (BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT == writeType) {
-							writeQueue.addAll(splittedMessage);
-							if (!doWrite(characteristic, firstMessage)) {
-								writeQueue.clear();
-								writeCallback = null;
-								callback.invoke("Write failed");
-							}
-						} else {
-							try {
-								boolean writeError = false;
-								if (!doWrite(characteristic, firstMessage)) {
-									writeError = true;
-									callback.invoke("Write failed");
-								}
-								if (!writeError) {
-									Thread.sleep(queueSleepTime);
-									for (byte[] message : splittedMessage) {
-										if (!doWrite(characteristic, message)) {
-											writeError = true;
-											callback.invoke("Write failed");
-											break;
-										}
-										Thread.sleep(queueSleepTime);
-									}
-									if (!writeError) {
-										callback.invoke();
-									}
-								}
-							} catch (InterruptedException e) {
-								callback.invoke("Error during writing");
-							}
-						}
-					} else if (doWrite(characteristic, data)) {
-						Log.d(BleManager.LOG_TAG, "Write completed");
-						if (BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE == writeType) {
-							callback.invoke();
-						}
-					} else {
-						callback.invoke("Write failed");
-						writeCallback = null;
-					}
-				}
-			}
-		}
-	}
-
-	public void writeDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] data, Integer maxByteSize, Integer queueSleepTime, Callback callback) {
-
-		Log.d(BleManager.LOG_TAG, "writeDescriptor: descriptorUUID=" + descriptorUUID.toString());
-
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
-			return;
-		}
-
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null");
-			return;
-		}
-
-		BluetoothGattService service = gatt.getService(serviceUUID);
-		BluetoothGattDescriptor descriptor = findWritableDescriptor(service, characteristicUUID, descriptorUUID);
-
-		if (descriptor == null) {
-			callback.invoke("Descriptor " + descriptorUUID + " not found.");
-			return;
-		}
-
-		if (writeQueue.size() > 0) {
-			callback.invoke("You have already an queued message");
-			return;
-		}
-
-		if (writeDescriptorCallback != null) {
-			callback.invoke("You're already writing descriptor");
-			return;
-		}
-
-		writeDescriptorCallback = callback;
-
-		if (data.length > maxByteSize) {
-			int dataLength = data.length;
-			int count = 0;
-			byte[] firstMessage = null;
-			List<byte[]> splittedMessage = new ArrayList<>();
-
-			while (count < dataLength && (dataLength - count > maxByteSize)) {
-				if (count == 0) {
-					firstMessage = Arrays.copyOfRange(data, count, count + maxByteSize);
-				} else {
-					byte[] splitMessage = Arrays.copyOfRange(data, count, count + maxByteSize);
-					splittedMessage.add(splitMessage);
-				}
-				count += maxByteSize;
-			}
-
-			if (count < dataLength) {
-				// Other bytes in queue
-				byte[] splitMessage = Arrays.copyOfRange(data, count, data.length);
-				splittedMessage.add(splitMessage);
-			}
-
-			try {
-				if (!doWrite(descriptor, firstMessage)) {
-					callback.invoke("Write failed");
-					writeDescriptorCallback = null;
-					return;
-				}
-				Thread.sleep(queueSleepTime);
-				for (byte[] message : splittedMessage) {
-					if (!doWrite(descriptor, message)) {
-						writeDescriptorCallback = null;
-						callback.invoke("Write failed");
-						return;
-					}
-					Thread.sleep(queueSleepTime);
-				}
-			} catch (InterruptedException e) {
-				callback.invoke("Error during writing");
-				writeDescriptorCallback = null;
-			}
-		} else if (doWrite(descriptor, data)) {
-			Log.d(BleManager.LOG_TAG, "doWrite completed");
-		} else {
-			callback.invoke("Write failed");
-			writeDescriptorCallback = null;
-		}
-	}
-
 	public void requestConnectionPriority(int connectionPriority, Callback callback) {
 		if (gatt == null) {
 			callback.invoke("BluetoothGatt is null", null);
@@ -901,98 +1198,52 @@ public class Peripheral extends BluetoothGattCallback {
 		}
 	}
 
-	public void requestMTU(int mtu, Callback callback) {
-		if (!isConnected()) {
-			callback.invoke("Device is not connected", null);
-			return;
-		}
+	public int getMtu() {
+		return mtu;
+	}
 
-		if (gatt == null) {
-			callback.invoke("BluetoothGatt is null", null);
-			return;
-		}
+	public void setTargetMtu(int targetMtu) {
+		this.targetMtu = targetMtu;
+	}
 
-		if (Build.VERSION.SDK_INT >= LOLLIPOP) {
-			requestMTUCallback = callback;
-			gatt.requestMtu(mtu);
-		} else {
-			callback.invoke("Requesting MTU requires at least API level 21", null);
-		}
+	public void requestMTU(int mtu, Callback callback) {
+		BLECommand command = new BLECommand(BLECommand.REQUEST_MTU, callback);
+		command.setMtu(mtu);
+		enqueue(command);
 	}
 
 	@Override
 	public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
 		super.onMtuChanged(gatt, mtu, status);
-		if (requestMTUCallback != null) {
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				requestMTUCallback.invoke(null, mtu);
-			} else {
-				requestMTUCallback.invoke("Error requesting MTU status = " + status, null);
-			}
-
-			requestMTUCallback = null;
+		if (status == BluetoothGatt.GATT_SUCCESS) {
+			this.mtu = mtu;
 		}
-	}
 
-	// Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
-	// and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-	private BluetoothGattCharacteristic findWritableCharacteristic(BluetoothGattService service, UUID characteristicUUID, int writeType) {
-		try {
-			// get write property
-			int writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE;
-			if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-				writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+		synchronized (commandLock) {
+			BLECommand command = getCurrentCommand(BLECommand.REQUEST_MTU);
+			if (command == null) {
+				return;
 			}
-
-			List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-			for (BluetoothGattCharacteristic characteristic : characteristics) {
-				if ((characteristic.getProperties() & writeProperty) != 0 && characteristicUUID.equals(characteristic.getUuid())) {
-					return characteristic;
-				}
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				command.getCallback().invoke(null, mtu);
+			} else {
+				command.getCallback().invoke("Error requesting MTU status = " + status, null);
 			}
-
-			// As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-			return service.getCharacteristic(characteristicUUID);
-		} catch (Exception e) {
-			Log.e(BleManager.LOG_TAG, "Error on findWritableCharacteristic", e);
-			return null;
+			completeCommand();
 		}
 	}
 
-	private BluetoothGattDescriptor findWritableDescriptor(BluetoothGattService service, UUID characteristicUUID, UUID descriptorUUID) {
-		try {
-      if (service == null) {
-        return null;
-      }
-
-      BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
-      if (characteristic == null) {
-        return null;
-      }
-
-			int writePermission = BluetoothGattDescriptor.PERMISSION_WRITE;
-			List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
-			for (BluetoothGattDescriptor descriptor : descriptors) {
-				if (((descriptor.getPermissions() & writePermission) != 0) && 
-            descriptorUUID.equals(descriptor.getUuid())) {
-					return descriptor;
-				}
-			}
-
-			// As a last resort, try and find ANY descriptor with this UUID, even if it doesn't have the correct permissions
-      return characteristic.getDescriptor(descriptorUUID);
-		} catch (Exception e) {
-			Log.e(BleManager.LOG_TAG, "Error on findWritableDescriptor", e);
-			return null;
-		}
-	}
 
-	private String generateHashKey(BluetoothGattCharacteristic characteristic) {
-		return generateHashKey(characteristic.getService().getUuid(), characteristic);
-	}
+	private static class EnabledNotification {
+		private final UUID serviceUUID;
+		private final UUID characteristicUUID;
+		// null for a notification started without options
+		private final NotificationSubscription subscription;
 
-	private String generateHashKey(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
-		return String.valueOf(serviceUUID) + "|" + characteristic.getUuid() + "|" + characteristic.getInstanceId();
+		EnabledNotification(UUID serviceUUID, UUID characteristicUUID, NotificationSubscription subscription) {
+			this.serviceUUID = serviceUUID;
+			this.characteristicUUID = characteristicUUID;
+			this.subscription = subscription;
+		}
 	}
-
 }
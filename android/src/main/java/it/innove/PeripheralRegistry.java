@@ -0,0 +1,223 @@
+package it.innove;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeripheralRegistry holds the known peripherals, the key is the MAC Address.
+ * It is safe to use from the scan thread and the native modules thread without locking.
+ * The peripherals are kept in the order they were added, like the LinkedHashMap it replaces.
+ * It can be bounded by size (least recently seen first) and by the time since a peripheral was last seen.
+ * Connected peripherals and the ones being connected or reconnected are never evicted.
+ */
+public class PeripheralRegistry<T extends PeripheralRegistry.Entry> {
+
+	public interface Entry {
+		long getLastSeen();
+
+		boolean isConnectedOrConnecting();
+	}
+
+	public interface EvictionListener<T> {
+		void onEvicted(T peripheral);
+	}
+
+	// when the registry is full it is trimmed to this fraction of maxSize, so the eviction cost is amortized
+	private static final float TRIM_FACTOR = 0.9f;
+
+	private final ConcurrentHashMap<String, Node<T>> peripherals = new ConcurrentHashMap<>();
+	// the same nodes by insertion sequence, a node is added here before it is mapped and removed after it is unmapped
+	private final ConcurrentSkipListMap<Long, Node<T>> order = new ConcurrentSkipListMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+	private volatile int maxSize = 0;
+	private volatile long ttlMs = 0;
+	private volatile EvictionListener<T> evictionListener;
+
+	public void configure(int maxSize, long ttlMs, EvictionListener<T> evictionListener) {
+		this.maxSize = maxSize;
+		this.ttlMs = ttlMs;
+		this.evictionListener = evictionListener;
+	}
+
+	public long getTtl() {
+		return ttlMs;
+	}
+
+	public T get(String address) {
+		Node<T> node = peripherals.get(address);
+		return node != null ? node.peripheral : null;
+	}
+
+	public int size() {
+		return peripherals.size();
+	}
+
+	// a replaced peripheral moves to the end of the order
+	public void put(String address, T peripheral) {
+		Node<T> node = newNode(address, peripheral);
+		Node<T> previous = peripherals.put(address, node);
+		if (previous != null) {
+			order.remove(previous.sequence);
+		}
+		trimIfNeeded();
+	}
+
+	// returns the peripheral already registered for the address, or null if the new one was added
+	public T putIfAbsent(String address, T peripheral) {
+		Node<T> node = newNode(address, peripheral);
+		Node<T> current = peripherals.putIfAbsent(address, node);
+		if (current != null) {
+			order.remove(node.sequence);
+			return current.peripheral;
+		}
+		trimIfNeeded();
+		return null;
+	}
+
+	private Node<T> newNode(String address, T peripheral) {
+		Node<T> node = new Node<>(address, peripheral, sequence.incrementAndGet());
+		order.put(node.sequence, node);
+		return node;
+	}
+
+	public T remove(String address) {
+		Node<T> node = peripherals.remove(address);
+		if (node == null) {
+			return null;
+		}
+		order.remove(node.sequence);
+		return node.peripheral;
+	}
+
+	// removes the node only if the address is still mapped to it
+	private boolean remove(Node<T> node) {
+		if (peripherals.remove(node.address, node)) {
+			order.remove(node.sequence);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A copy of the peripherals in the order they were added, it does not change while the caller iterates it.
+	 * The copy is O(n), with a set of the addresses, but takes no lock. The peripherals added or removed
+	 * during the copy may be missing, an address removed and added again is only returned once.
+	 */
+	public List<T> values() {
+		List<T> values = new ArrayList<>(peripherals.size());
+		Set<String> addresses = new HashSet<>();
+		for (Node<T> node : order.values()) {
+			// skip a node being added by a putIfAbsent that loses, or being replaced
+			if (peripherals.get(node.address) == node && addresses.add(node.address)) {
+				values.add(node.peripheral);
+			}
+		}
+		return values;
+	}
+
+	public void removeDisconnected() {
+		for (Node<T> node : peripherals.values()) {
+			if (!node.peripheral.isConnectedOrConnecting()) {
+				remove(node);
+			}
+		}
+	}
+
+	// remove the peripherals not seen in the last ttlMs
+	public void evictExpired(long now) {
+		long ttl = ttlMs;
+		if (ttl <= 0) {
+			return;
+		}
+
+		List<T> evicted = new ArrayList<>();
+		for (Node<T> node : peripherals.values()) {
+			T peripheral = node.peripheral;
+			if (!peripheral.isConnectedOrConnecting() && now - peripheral.getLastSeen() > ttl && remove(node)) {
+				evicted.add(peripheral);
+			}
+		}
+		notifyEvicted(evicted);
+	}
+
+	private void trimIfNeeded() {
+		int max = maxSize;
+		if (max <= 0 || peripherals.size() <= max) {
+			return;
+		}
+		// only one thread trims, the others keep going
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+
+		List<T> evicted = new ArrayList<>();
+		try {
+			// lastSeen keeps changing while scanning, sort on a copy of it
+			List<Candidate<T>> candidates = new ArrayList<>();
+			for (Node<T> node : peripherals.values()) {
+				if (!node.peripheral.isConnectedOrConnecting()) {
+					candidates.add(new Candidate<>(node));
+				}
+			}
+			Collections.sort(candidates, new Comparator<Candidate<T>>() {
+				@Override
+				public int compare(Candidate<T> a, Candidate<T> b) {
+					return a.lastSeen < b.lastSeen ? -1 : (a.lastSeen == b.lastSeen ? 0 : 1);
+				}
+			});
+
+			int target = Math.max(1, (int) (max * TRIM_FACTOR));
+			for (Candidate<T> candidate : candidates) {
+				if (peripherals.size() <= target) {
+					break;
+				}
+				if (remove(candidate.node)) {
+					evicted.add(candidate.node.peripheral);
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+		notifyEvicted(evicted);
+	}
+
+	private static class Node<T> {
+		private final String address;
+		private final T peripheral;
+		private final long sequence;
+
+		Node(String address, T peripheral, long sequence) {
+			this.address = address;
+			this.peripheral = peripheral;
+			this.sequence = sequence;
+		}
+	}
+
+	private static class Candidate<T extends Entry> {
+		private final Node<T> node;
+		private final long lastSeen;
+
+		Candidate(Node<T> node) {
+			this.node = node;
+			this.lastSeen = node.peripheral.getLastSeen();
+		}
+	}
+
+	private void notifyEvicted(List<T> evicted) {
+		EvictionListener<T> listener = evictionListener;
+		if (listener != null) {
+			for (T peripheral : evicted) {
+				listener.onEvicted(peripheral);
+			}
+		}
+	}
+}
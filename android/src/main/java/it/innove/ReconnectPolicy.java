@@ -0,0 +1,71 @@
+package it.innove;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.Random;
+
+/**
+ * ReconnectPolicy is how a peripheral reconnects after a disconnection it did not request.
+ * With autoConnect the stack connects in the background when the peripheral is in range again,
+ * with backoff the connection is retried after delays growing exponentially, with some jitter.
+ */
+class ReconnectPolicy {
+
+	public static final String AUTO_CONNECT = "autoConnect";
+	public static final String BACKOFF = "backoff";
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 5;
+	private static final int DEFAULT_INITIAL_DELAY_MS = 500;
+	private static final int DEFAULT_MAX_DELAY_MS = 30000;
+	private static final double DEFAULT_MULTIPLIER = 2;
+	private static final double DEFAULT_JITTER = 0.5;
+
+	private static final Random random = new Random();
+
+	private final String mode;
+	// 0 to retry forever
+	private final int maxAttempts;
+	private final int initialDelayMs;
+	private final int maxDelayMs;
+	private final double multiplier;
+	// the delay varies by +/- jitter times the delay
+	private final double jitter;
+
+	ReconnectPolicy(String mode, int maxAttempts, int initialDelayMs, int maxDelayMs, double multiplier, double jitter) {
+		this.mode = mode;
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMs = initialDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+	}
+
+	// throws IllegalArgumentException for an unknown mode
+	static ReconnectPolicy fromOptions(ReadableMap options) {
+		String mode = options.hasKey("mode") ? options.getString("mode") : BACKOFF;
+		if (!AUTO_CONNECT.equals(mode) && !BACKOFF.equals(mode)) {
+			throw new IllegalArgumentException("Invalid reconnect mode: " + mode);
+		}
+		return new ReconnectPolicy(mode,
+				options.hasKey("maxAttempts") ? Math.max(options.getInt("maxAttempts"), 0) : DEFAULT_MAX_ATTEMPTS,
+				options.hasKey("initialDelayMs") ? Math.max(options.getInt("initialDelayMs"), 0) : DEFAULT_INITIAL_DELAY_MS,
+				options.hasKey("maxDelayMs") ? Math.max(options.getInt("maxDelayMs"), 0) : DEFAULT_MAX_DELAY_MS,
+				options.hasKey("multiplier") ? Math.max(options.getDouble("multiplier"), 1) : DEFAULT_MULTIPLIER,
+				options.hasKey("jitter") ? Math.min(Math.max(options.getDouble("jitter"), 0), 1) : DEFAULT_JITTER);
+	}
+
+	boolean isAutoConnect() {
+		return AUTO_CONNECT.equals(mode);
+	}
+
+	// attempt starts at 1
+	boolean canRetry(int attempt) {
+		return maxAttempts == 0 || attempt <= maxAttempts;
+	}
+
+	long delayMs(int attempt) {
+		double delay = Math.min(initialDelayMs * Math.pow(multiplier, attempt - 1), maxDelayMs);
+		delay *= 1 + jitter * (2 * random.nextDouble() - 1);
+		return Math.max(Math.round(delay), 0);
+	}
+}
@@ -0,0 +1,40 @@
+package it.innove;
+
+/**
+ * ReconnectState tracks the reconnection of a peripheral after a disconnection it did not request.
+ * The attempts are counted from the disconnection until the peripheral connects again or the reconnection is stopped.
+ */
+class ReconnectState {
+
+	private volatile boolean reconnecting = false;
+	private int attempt = 0;
+
+	boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	// the connection dropped and the peripheral has a reconnect policy
+	synchronized void start() {
+		reconnecting = true;
+	}
+
+	// the number of the next attempt starting at 1, 0 when the reconnection was stopped meanwhile
+	synchronized int nextAttempt() {
+		if (!reconnecting) {
+			return 0;
+		}
+		return ++attempt;
+	}
+
+	// returns true when the connection is a reconnection, the state is reset for the next disconnection
+	synchronized boolean onConnected() {
+		boolean reconnected = reconnecting;
+		stop();
+		return reconnected;
+	}
+
+	synchronized void stop() {
+		reconnecting = false;
+		attempt = 0;
+	}
+}
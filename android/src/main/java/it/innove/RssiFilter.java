@@ -0,0 +1,168 @@
+package it.innove;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.Arrays;
+
+/**
+ * RssiFilter smooths the RSSI samples of a single peripheral.
+ * The Settings are shared by the scan, every peripheral gets its own filter instance.
+ */
+public abstract class RssiFilter {
+
+	// returns the filtered value after adding the sample
+	public abstract double update(int rssi);
+
+	public static final String EMA = "ema";
+	public static final String MEDIAN = "median";
+	public static final String KALMAN = "kalman";
+
+	public static class Settings {
+		private final String type;
+		private final double alpha;
+		private final int window;
+		private final double processNoise;
+		private final double measurementNoise;
+		private final boolean estimateDistance;
+		private final double pathLossExponent;
+		private final Integer measuredPower;
+
+		private Settings(ReadableMap options) {
+			type = options.hasKey("rssiFilter") ? options.getString("rssiFilter") : null;
+			alpha = options.hasKey("rssiFilterAlpha") ? options.getDouble("rssiFilterAlpha") : 0.3;
+			window = options.hasKey("rssiFilterWindow") ? options.getInt("rssiFilterWindow") : 5;
+			processNoise = options.hasKey("rssiFilterProcessNoise") ? options.getDouble("rssiFilterProcessNoise") : 0.125;
+			measurementNoise = options.hasKey("rssiFilterMeasurementNoise") ? options.getDouble("rssiFilterMeasurementNoise") : 4;
+			estimateDistance = options.hasKey("estimateDistance") && options.getBoolean("estimateDistance");
+			pathLossExponent = options.hasKey("pathLossExponent") ? options.getDouble("pathLossExponent") : 2;
+			measuredPower = options.hasKey("measuredPower") ? options.getInt("measuredPower") : null;
+		}
+
+		// returns null when neither smoothing nor distance are requested, throws IllegalArgumentException for an unknown filter
+		static Settings fromOptions(ReadableMap options) {
+			Settings settings = new Settings(options);
+			if (settings.type != null && !EMA.equals(settings.type) && !MEDIAN.equals(settings.type) && !KALMAN.equals(settings.type)) {
+				throw new IllegalArgumentException("Invalid rssiFilter: " + settings.type);
+			}
+			if (settings.type == null && !settings.estimateDistance) {
+				return null;
+			}
+			return settings;
+		}
+
+		RssiFilter newFilter() {
+			if (EMA.equals(type)) {
+				return new Ema(alpha);
+			} else if (MEDIAN.equals(type)) {
+				return new Median(window);
+			} else if (KALMAN.equals(type)) {
+				return new Kalman(processNoise, measurementNoise);
+			}
+			return new None();
+		}
+
+		boolean isDistanceEnabled() {
+			return estimateDistance;
+		}
+
+		// log-distance path loss model, txPowerLevel is the advertised power at 0m
+		double estimateDistance(double rssi, int txPowerLevel) {
+			double powerAt1m;
+			if (measuredPower != null) {
+				powerAt1m = measuredPower;
+			} else if (txPowerLevel != Integer.MIN_VALUE) {
+				// about 41dB are lost in the first meter
+				powerAt1m = txPowerLevel - 41;
+			} else {
+				return -1;
+			}
+			return Math.pow(10, (powerAt1m - rssi) / (10 * pathLossExponent));
+		}
+	}
+
+	private static class None extends RssiFilter {
+		@Override
+		public double update(int rssi) {
+			return rssi;
+		}
+	}
+
+	private static class Ema extends RssiFilter {
+		private final double alpha;
+		private double value;
+		private boolean initialized = false;
+
+		Ema(double alpha) {
+			this.alpha = alpha;
+		}
+
+		@Override
+		public double update(int rssi) {
+			if (!initialized) {
+				value = rssi;
+				initialized = true;
+			} else {
+				value = alpha * rssi + (1 - alpha) * value;
+			}
+			return value;
+		}
+	}
+
+	private static class Median extends RssiFilter {
+		private final int[] samples;
+		private final int[] sorted;
+		private int count = 0;
+		private int next = 0;
+
+		Median(int window) {
+			samples = new int[Math.max(1, window)];
+			sorted = new int[samples.length];
+		}
+
+		@Override
+		public double update(int rssi) {
+			samples[next] = rssi;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) {
+				count++;
+			}
+
+			System.arraycopy(samples, 0, sorted, 0, count);
+			Arrays.sort(sorted, 0, count);
+			if (count % 2 == 1) {
+				return sorted[count / 2];
+			}
+			return (sorted[count / 2 - 1] + sorted[count / 2]) / 2.0;
+		}
+	}
+
+	// one dimensional Kalman filter with a constant model
+	private static class Kalman extends RssiFilter {
+		private final double processNoise;
+		private final double measurementNoise;
+		private double estimate;
+		private double errorCovariance;
+		private boolean initialized = false;
+
+		Kalman(double processNoise, double measurementNoise) {
+			this.processNoise = processNoise;
+			this.measurementNoise = measurementNoise;
+		}
+
+		@Override
+		public double update(int rssi) {
+			if (!initialized) {
+				estimate = rssi;
+				errorCovariance = measurementNoise;
+				initialized = true;
+				return estimate;
+			}
+
+			double predictedCovariance = errorCovariance + processNoise;
+			double gain = predictedCovariance / (predictedCovariance + measurementNoise);
+			estimate = estimate + gain * (rssi - estimate);
+			errorCovariance = (1 - gain) * predictedCovariance;
+			return estimate;
+		}
+	}
+}
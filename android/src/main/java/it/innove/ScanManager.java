@@ -2,14 +2,28 @@ package it.innove;
 
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public abstract class ScanManager {
 
@@ -17,14 +31,238 @@ public abstract class ScanManager {
 	protected Context context;
 	protected ReactContext reactContext;
 	protected BleManager bleManager;
-	protected AtomicInteger scanSessionId = new AtomicInteger();
+
+	// scan results are processed on the scan thread and never on the UI thread
+	private static HandlerThread scanThread;
+	private static Handler scanScheduler;
+	// the timers of the GATT operations, notifications and connections, kept apart so a busy scan doesn't delay them
+	private static HandlerThread schedulerThread;
+	private static Handler scheduler;
+	protected Handler scanHandler;
+
+	// scan session state, only accessed from scanHandler
+	private boolean scanning = false;
+	private int scanWindowMs;
+	private int scanIntervalMs;
+
+	// when > 0 discoveries are accumulated and emitted together every batchIntervalMs
+	private volatile int batchIntervalMs;
+	private volatile DuplicatePolicy duplicatePolicy = new DuplicatePolicy(false, 0, 0, false);
+	protected volatile AdvertisingFilter advertisingFilter = new AdvertisingFilter();
+	private volatile RssiFilter.Settings rssiFilterSettings;
+	private volatile boolean deltaUpdates = false;
+	private volatile boolean decodeBeacons = false;
+	private volatile boolean beaconsOnly = false;
+	private volatile Beacon.Filter beaconFilter;
+	// only accessed from scanHandler, key is the MAC Address
+	private Map<String, Peripheral> pendingDiscoveries = new LinkedHashMap<>();
+	private boolean flushScheduled;
+	// only accessed from scanHandler
+	private final ScanMetrics metrics = new ScanMetrics();
+	// the callbacks of the scanner waiting for scanHandler
+	private final ScanQueue<Runnable> results = new ScanQueue<>();
+	private int metricsIntervalMs;
 
 	public ScanManager(ReactApplicationContext reactContext, BleManager bleManager) {
 		context = reactContext;
 		this.reactContext = reactContext;
 		this.bleManager = bleManager;
+
+		scanHandler = getScanScheduler();
+	}
+
+	static synchronized Handler getScanScheduler() {
+		if (scanScheduler == null) {
+			scanThread = new HandlerThread("BleManagerScan", Process.THREAD_PRIORITY_BACKGROUND);
+			scanThread.start();
+			scanScheduler = new Handler(scanThread.getLooper());
+		}
+		return scanScheduler;
+	}
+
+	static synchronized Handler getScheduler() {
+		if (scheduler == null) {
+			schedulerThread = new HandlerThread("BleManagerScheduler", Process.THREAD_PRIORITY_DEFAULT);
+			schedulerThread.start();
+			scheduler = new Handler(schedulerThread.getLooper());
+		}
+		return scheduler;
+	}
+
+	// the work already posted still runs, e.g. the end of the scan posted by destroy, the delayed work is dropped.
+	// The handlers are kept so a late callback of the destroyed module posts to a dead thread instead of starting a new one.
+	static synchronized void shutdownSchedulers() {
+		if (scanThread != null) {
+			scanThread.quitSafely();
+		}
+		if (schedulerThread != null) {
+			schedulerThread.quitSafely();
+		}
+	}
+
+	// the threads are started again on first use by a new instance of the module
+	static synchronized void resetSchedulers() {
+		shutdownSchedulers();
+		scanThread = null;
+		scanScheduler = null;
+		schedulerThread = null;
+		scheduler = null;
+	}
+
+	public void destroy() {
+		scanHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				endScanSession();
+				scanHandler.removeCallbacks(discoveryFlusher);
+			}
+		});
+	}
+
+	// runs the handling of a scan callback on scanHandler, in the order the callbacks were received
+	protected void postResult(Runnable result) {
+		if (results.add(result)) {
+			scanHandler.post(resultsDrainer);
+		}
+	}
+
+	private Runnable resultsDrainer = new Runnable() {
+		@Override
+		public void run() {
+			for (Runnable result : results.drain()) {
+				result.run();
+			}
+		}
+	};
+
+	// start and stop the radio, called from scanHandler
+	protected abstract void startScanning();
+
+	protected abstract void stopScanning();
+
+	protected void startScanSession(final int scanSeconds, ReadableMap options) {
+		final int window = options.hasKey("scanWindowMs") ? options.getInt("scanWindowMs") : 0;
+		final int interval = options.hasKey("scanIntervalMs") ? options.getInt("scanIntervalMs") : 0;
+		final int metricsInterval = options.hasKey("metricsIntervalMs") ? options.getInt("metricsIntervalMs") : 0;
+
+		scanHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				endScanSession();
+
+				scanWindowMs = window;
+				scanIntervalMs = interval;
+				metricsIntervalMs = metricsInterval;
+				metrics.reset(SystemClock.elapsedRealtime());
+				scanning = true;
+				startScanning();
+
+				if (metricsIntervalMs > 0) {
+					scanHandler.postDelayed(metricsReporter, metricsIntervalMs);
+				}
+				if (isDutyCycled()) {
+					scanHandler.postDelayed(dutyCycleOff, scanWindowMs);
+				}
+				if (scanSeconds > 0) {
+					scanHandler.postDelayed(scanTimeout, scanSeconds * 1000L);
+				}
+			}
+		});
+	}
+
+	public void stopScan(final Callback callback) {
+		scanHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				endScanSession();
+				flushDiscoveries();
+				callback.invoke();
+			}
+		});
+	}
+
+	private boolean isDutyCycled() {
+		return scanWindowMs > 0 && scanIntervalMs > scanWindowMs;
+	}
+
+	private void endScanSession() {
+		scanHandler.removeCallbacks(scanTimeout);
+		scanHandler.removeCallbacks(dutyCycleOn);
+		scanHandler.removeCallbacks(dutyCycleOff);
+		scanHandler.removeCallbacks(metricsReporter);
+		metrics.end(SystemClock.elapsedRealtime());
+
+		if (scanning) {
+			scanning = false;
+			if (getBluetoothAdapter().getState() == BluetoothAdapter.STATE_ON) {
+				stopScanning();
+			}
+		}
 	}
 
+	// called from scanHandler when the controller can't start the scan
+	protected void onScanFailed(int errorCode) {
+		Log.d(BleManager.LOG_TAG, "Scan failed, error code: " + errorCode);
+		metrics.onScanFailed(errorCode);
+		// the scan is not running, there is nothing to stop
+		scanning = false;
+		endScanSession();
+		flushDiscoveries();
+		WritableMap map = Arguments.createMap();
+		map.putInt("errorCode", errorCode);
+		bleManager.sendEvent("BleManagerStopScan", map);
+	}
+
+	public void getScanMetrics(final Callback callback) {
+		scanHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				callback.invoke(null, metrics.asWritableMap(SystemClock.elapsedRealtime(), bleManager.peripherals.size(), true));
+			}
+		});
+	}
+
+	private Runnable metricsReporter = new Runnable() {
+		@Override
+		public void run() {
+			bleManager.sendEvent("BleManagerScanMetrics", metrics.asWritableMap(SystemClock.elapsedRealtime(), bleManager.peripherals.size(), false));
+			scanHandler.postDelayed(this, metricsIntervalMs);
+		}
+	};
+
+	private Runnable scanTimeout = new Runnable() {
+		@Override
+		public void run() {
+			endScanSession();
+			flushDiscoveries();
+			WritableMap map = Arguments.createMap();
+			bleManager.sendEvent("BleManagerStopScan", map);
+		}
+	};
+
+	// the radio is off for scanIntervalMs - scanWindowMs of every interval
+	private Runnable dutyCycleOff = new Runnable() {
+		@Override
+		public void run() {
+			if (scanning) {
+				scanning = false;
+				if (getBluetoothAdapter().getState() == BluetoothAdapter.STATE_ON) {
+					stopScanning();
+				}
+			}
+			scanHandler.postDelayed(dutyCycleOn, scanIntervalMs - scanWindowMs);
+		}
+	};
+
+	private Runnable dutyCycleOn = new Runnable() {
+		@Override
+		public void run() {
+			scanning = true;
+			startScanning();
+			scanHandler.postDelayed(dutyCycleOff, scanWindowMs);
+		}
+	};
+
 	protected BluetoothAdapter getBluetoothAdapter() {
 		if (bluetoothAdapter == null) {
 			android.bluetooth.BluetoothManager manager = (android.bluetooth.BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -33,7 +271,166 @@ public abstract class ScanManager {
 		return bluetoothAdapter;
 	}
 
-	public abstract void stopScan(Callback callback);
+	// throws IllegalArgumentException if a filter is invalid, the options of the previous scan are kept then
+	protected void readDiscoveryOptions(ReadableArray serviceUUIDs, boolean allowDuplicates, ReadableMap options) {
+		AdvertisingFilter filter = AdvertisingFilter.fromOptions(serviceUUIDs, options);
+		Beacon.Filter beaconFilter = Beacon.Filter.fromOptions(options);
+		DuplicatePolicy duplicatePolicy = DuplicatePolicy.fromOptions(allowDuplicates, options);
+		RssiFilter.Settings rssiFilterSettings = RssiFilter.Settings.fromOptions(options);
+
+		int interval = 0;
+		if (options.hasKey("batchIntervalMs")) {
+			interval = options.getInt("batchIntervalMs");
+		}
+		batchIntervalMs = interval;
+		this.duplicatePolicy = duplicatePolicy;
+		advertisingFilter = filter;
+		this.rssiFilterSettings = rssiFilterSettings;
+		deltaUpdates = options.hasKey("deltaUpdates") && options.getBoolean("deltaUpdates");
+		this.beaconFilter = beaconFilter;
+		beaconsOnly = options.hasKey("beaconsOnly") && options.getBoolean("beaconsOnly");
+		decodeBeacons = beaconsOnly || this.beaconFilter != null || (options.hasKey("decodeBeacons") && options.getBoolean("decodeBeacons"));
+	}
+
+	// must be called from scanHandler, returns null when the advertisement is discarded by the filter
+	// timestamp is the elapsed realtime when the advertisement was received
+	protected Peripheral onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp) {
+		metrics.onAdvertisement();
+		String address = device.getAddress();
+		Peripheral peripheral = bleManager.peripherals.get(address);
+
+		// most advertisements repeat the previous payload, parse only when it changes
+		AdvertisingData advertisingData;
+		if (peripheral != null && peripheral.getAdvertisingData() != null && Arrays.equals(peripheral.getAdvertisingDataBytes(), scanRecord)) {
+			advertisingData = peripheral.getAdvertisingData();
+		} else {
+			advertisingData = AdvertisingData.parse(scanRecord);
+		}
+
+		if (!advertisingFilter.matches(device.getName(), rssi, advertisingData)
+				|| (beaconFilter != null && !beaconFilter.matches(advertisingData.getBeacon()))
+				|| (beaconsOnly && advertisingData.getBeacon() == null)) {
+			metrics.onFiltered();
+			return null;
+		}
+
+		metrics.onAccepted(address, timestamp);
+		if (peripheral == null) {
+			Log.i(bleManager.LOG_TAG, "DiscoverPeripheral: " + device.getName());
+			peripheral = new Peripheral(device, rssi, advertisingData, reactContext);
+			Peripheral current = bleManager.peripherals.putIfAbsent(address, peripheral);
+			if (current != null) {
+				// added in the meantime from the native modules thread
+				peripheral = current;
+			}
+		}
+		peripheral.setRssiFilterSettings(rssiFilterSettings);
+		peripheral.updateRssi(rssi);
+		peripheral.updateData(advertisingData);
+		return peripheral;
+	}
+
+	// must be called from scanHandler
+	protected void emitDiscovery(Peripheral peripheral) {
+		long now = SystemClock.elapsedRealtime();
+		if (!duplicatePolicy.shouldEmit(peripheral, now)) {
+			metrics.onDeduplicated();
+			return;
+		}
+		peripheral.markEmitted(now);
+		metrics.onEmitted();
+		if (emitBeacon(peripheral)) {
+			return;
+		}
+
+		if (batchIntervalMs <= 0) {
+			bleManager.sendEvent("BleManagerDiscoverPeripheral", toWritableMap(peripheral));
+			metrics.onEvent();
+			return;
+		}
+
+		pendingDiscoveries.put(peripheral.getDevice().getAddress(), peripheral);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			scanHandler.postDelayed(discoveryFlusher, batchIntervalMs);
+		}
+	}
+
+	// must be called from scanHandler
+	protected void emitDiscoveries(Collection<Peripheral> peripherals) {
+		if (batchIntervalMs > 0) {
+			for (Peripheral peripheral : peripherals) {
+				emitDiscovery(peripheral);
+			}
+		} else {
+			long now = SystemClock.elapsedRealtime();
+			List<Peripheral> changed = new ArrayList<>(peripherals.size());
+			for (Peripheral peripheral : peripherals) {
+				if (duplicatePolicy.shouldEmit(peripheral, now)) {
+					peripheral.markEmitted(now);
+					metrics.onEmitted();
+					if (!emitBeacon(peripheral)) {
+						changed.add(peripheral);
+					}
+				} else {
+					metrics.onDeduplicated();
+				}
+			}
+			if (!changed.isEmpty()) {
+				sendDiscoveries(changed);
+			}
+		}
+	}
+
+	// returns true when the beacon event replaces the peripheral event
+	private boolean emitBeacon(Peripheral peripheral) {
+		if (!decodeBeacons) {
+			return false;
+		}
+		AdvertisingData advertisingData = peripheral.getAdvertisingData();
+		Beacon beacon = advertisingData != null ? advertisingData.getBeacon() : null;
+		if (beacon == null) {
+			return false;
+		}
+		bleManager.sendEvent("BleManagerDiscoverBeacon", beacon.asWritableMap(peripheral));
+		metrics.onEvent();
+		return beaconsOnly;
+	}
+
+	private void sendDiscoveries(Collection<Peripheral> peripherals) {
+		WritableArray array = Arguments.createArray();
+		for (Peripheral peripheral : peripherals) {
+			array.pushMap(toWritableMap(peripheral));
+		}
+
+		WritableMap map = Arguments.createMap();
+		map.putArray("peripherals", array);
+		bleManager.sendEvent("BleManagerDiscoverPeripherals", map);
+		metrics.onEvent();
+	}
+
+	private WritableMap toWritableMap(Peripheral peripheral) {
+		return deltaUpdates ? peripheral.asDeltaWritableMap() : peripheral.asWritableMap();
+	}
+
+	// emit what is pending right away, e.g. when the scan stops, must be called from scanHandler
+	protected void flushDiscoveries() {
+		scanHandler.removeCallbacks(discoveryFlusher);
+		discoveryFlusher.run();
+	}
+
+	private Runnable discoveryFlusher = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled = false;
+			if (pendingDiscoveries.isEmpty()) {
+				return;
+			}
+
+			sendDiscoveries(pendingDiscoveries.values());
+			pendingDiscoveries.clear();
+		}
+	};
 
-	public abstract void scan(ReadableArray serviceUUIDs, final int scanSeconds, ReadableMap options, Callback callback);
+	public abstract void scan(ReadableArray serviceUUIDs, final int scanSeconds, boolean allowDuplicates, ReadableMap options, Callback callback);
 }
@@ -0,0 +1,193 @@
+package it.innove;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ScanMetrics counts what the scan pipeline does during a scan session.
+ * It is only accessed from the scan thread, the counters are reset when a scan starts.
+ */
+class ScanMetrics {
+
+	// upper bounds of the advertising interval histogram, the last bucket is for longer intervals
+	private static final int[] INTERVAL_BUCKETS_MS = {100, 250, 500, 1000, 2000, 5000};
+	// a long scan in a busy place sees many random addresses, the least recently seen are dropped
+	private static final int MAX_TRACKED_PERIPHERALS = 1024;
+
+	private long startTime;
+	private long endTime;
+	private long advertisements;
+	private long filtered;
+	private long deduplicated;
+	private long emitted;
+	private long events;
+	private final Map<Integer, Integer> scanFailures = new LinkedHashMap<>();
+	private final long[] intervalHistogram = new long[INTERVAL_BUCKETS_MS.length + 1];
+	// key is the MAC Address, in access order
+	private final Map<String, IntervalStats> intervals = new LinkedHashMap<String, IntervalStats>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, IntervalStats> eldest) {
+			return size() > MAX_TRACKED_PERIPHERALS;
+		}
+	};
+
+	void reset(long now) {
+		startTime = now;
+		endTime = 0;
+		advertisements = 0;
+		filtered = 0;
+		deduplicated = 0;
+		emitted = 0;
+		events = 0;
+		scanFailures.clear();
+		for (int i = 0; i < intervalHistogram.length; i++) {
+			intervalHistogram[i] = 0;
+		}
+		intervals.clear();
+	}
+
+	void end(long now) {
+		if (endTime == 0) {
+			endTime = now;
+		}
+	}
+
+	void onAdvertisement() {
+		advertisements++;
+	}
+
+	void onFiltered() {
+		filtered++;
+	}
+
+	void onDeduplicated() {
+		deduplicated++;
+	}
+
+	void onEmitted() {
+		emitted++;
+	}
+
+	void onEvent() {
+		events++;
+	}
+
+	void onScanFailed(int errorCode) {
+		Integer count = scanFailures.get(errorCode);
+		scanFailures.put(errorCode, count != null ? count + 1 : 1);
+	}
+
+	// timestamp is the elapsed realtime of the advertisement
+	void onAccepted(String address, long timestamp) {
+		IntervalStats stats = intervals.get(address);
+		if (stats == null) {
+			stats = new IntervalStats();
+			intervals.put(address, stats);
+		}
+		if (stats.count > 0) {
+			long interval = timestamp - stats.lastTimestamp;
+			if (interval >= 0) {
+				int bucket = bucket(interval);
+				stats.add(interval, bucket);
+				intervalHistogram[bucket]++;
+			}
+		}
+		stats.count++;
+		stats.lastTimestamp = timestamp;
+	}
+
+	private static int bucket(long interval) {
+		for (int i = 0; i < INTERVAL_BUCKETS_MS.length; i++) {
+			if (interval < INTERVAL_BUCKETS_MS[i]) {
+				return i;
+			}
+		}
+		return INTERVAL_BUCKETS_MS.length;
+	}
+
+	WritableMap asWritableMap(long now, int registrySize, boolean includePeripherals) {
+		long elapsed = (endTime > 0 ? endTime : now) - startTime;
+		double seconds = Math.max(elapsed, 1) / 1000.0;
+
+		WritableMap map = Arguments.createMap();
+		map.putDouble("durationMs", elapsed);
+		map.putDouble("advertisements", advertisements);
+		map.putDouble("advertisementsPerSecond", advertisements / seconds);
+		map.putDouble("filtered", filtered);
+		map.putDouble("deduplicated", deduplicated);
+		map.putDouble("emitted", emitted);
+		map.putDouble("emittedPerSecond", emitted / seconds);
+		map.putDouble("events", events);
+		map.putDouble("eventsPerSecond", events / seconds);
+		map.putInt("registrySize", registrySize);
+
+		WritableMap failures = Arguments.createMap();
+		for (Map.Entry<Integer, Integer> entry : scanFailures.entrySet()) {
+			failures.putInt(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		map.putMap("scanFailures", failures);
+
+		map.putArray("intervalBucketsMs", bucketsArray());
+		map.putArray("intervalHistogram", histogramArray(intervalHistogram));
+
+		if (includePeripherals) {
+			WritableMap peripherals = Arguments.createMap();
+			for (Map.Entry<String, IntervalStats> entry : intervals.entrySet()) {
+				peripherals.putMap(entry.getKey(), entry.getValue().asWritableMap());
+			}
+			map.putMap("peripherals", peripherals);
+		}
+		return map;
+	}
+
+	private static WritableArray bucketsArray() {
+		WritableArray array = Arguments.createArray();
+		for (int bucket : INTERVAL_BUCKETS_MS) {
+			array.pushInt(bucket);
+		}
+		return array;
+	}
+
+	private static WritableArray histogramArray(long[] histogram) {
+		WritableArray array = Arguments.createArray();
+		for (long count : histogram) {
+			array.pushDouble(count);
+		}
+		return array;
+	}
+
+	private static class IntervalStats {
+		private long count;
+		private long intervalCount;
+		private long lastTimestamp;
+		private long intervalSum;
+		private long minInterval = Long.MAX_VALUE;
+		private long maxInterval;
+		private final long[] histogram = new long[INTERVAL_BUCKETS_MS.length + 1];
+
+		void add(long interval, int bucket) {
+			intervalCount++;
+			intervalSum += interval;
+			minInterval = Math.min(minInterval, interval);
+			maxInterval = Math.max(maxInterval, interval);
+			histogram[bucket]++;
+		}
+
+		WritableMap asWritableMap() {
+			WritableMap map = Arguments.createMap();
+			map.putDouble("advertisements", count);
+			// out of order timestamps are counted as advertisements but not as intervals
+			if (intervalCount > 0) {
+				map.putDouble("meanIntervalMs", (double) intervalSum / intervalCount);
+				map.putDouble("minIntervalMs", minInterval);
+				map.putDouble("maxIntervalMs", maxInterval);
+			}
+			map.putArray("intervalHistogram", histogramArray(histogram));
+			return map;
+		}
+	}
+}
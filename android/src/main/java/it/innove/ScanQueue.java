@@ -0,0 +1,27 @@
+package it.innove;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ScanQueue hands the advertisements from the Bluetooth callback threads to the scan thread.
+ * The results are appended under a short lock and only the first one of a burst posts a drain,
+ * so a crowded place costs one message per burst instead of one per advertisement.
+ */
+class ScanQueue<T> {
+
+	private List<T> pending = new ArrayList<>();
+
+	// returns true when the queue was empty, the caller then schedules a drain
+	synchronized boolean add(T item) {
+		pending.add(item);
+		return pending.size() == 1;
+	}
+
+	// the items in the order they were added, a later add schedules a new drain
+	synchronized List<T> drain() {
+		List<T> items = pending;
+		pending = new ArrayList<>(items.size());
+		return items;
+	}
+}
@@ -0,0 +1,181 @@
+package it.innove;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Transaction runs a list of GATT operations back to back in the queue of a peripheral.
+ * Each operation gets its own result, the callback of the transaction is invoked once when all of them are done.
+ */
+class Transaction {
+
+	private final Peripheral peripheral;
+	private final Callback callback;
+	private final List<Operation> operations = new ArrayList<>();
+	private final String[] errors;
+	private final Object[] values;
+	private int pending;
+
+	private Transaction(Peripheral peripheral, int size, Callback callback) {
+		this.peripheral = peripheral;
+		this.callback = callback;
+		this.errors = new String[size];
+		this.values = new Object[size];
+		this.pending = size;
+	}
+
+	// throws IllegalArgumentException if an operation is invalid, nothing is executed then
+	static Transaction fromOperations(Peripheral peripheral, ReadableArray operations, Callback callback) {
+		Transaction transaction = new Transaction(peripheral, operations.size(), callback);
+		for (int i = 0; i < operations.size(); i++) {
+			if (operations.getType(i) != ReadableType.Map) {
+				throw new IllegalArgumentException("Operation " + i + ": not an object");
+			}
+			try {
+				transaction.operations.add(new Operation(operations.getMap(i)));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Operation " + i + ": " + e.getMessage());
+			}
+		}
+		return transaction;
+	}
+
+	void execute() {
+		if (operations.isEmpty()) {
+			callback.invoke(null, Arguments.createArray());
+			return;
+		}
+		// enqueued together so no other operation of the peripheral runs in between
+		peripheral.enqueueAtomically(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < operations.size(); i++) {
+					operations.get(i).enqueue(peripheral, resultCallback(i));
+				}
+			}
+		});
+	}
+
+	private Callback resultCallback(final int index) {
+		return new Callback() {
+			@Override
+			public void invoke(Object... args) {
+				onResult(index, args);
+			}
+		};
+	}
+
+	private void onResult(int index, Object[] args) {
+		synchronized (this) {
+			errors[index] = args.length > 0 && args[0] != null ? args[0].toString() : null;
+			values[index] = args.length > 1 ? args[1] : null;
+			pending--;
+			if (pending > 0) {
+				return;
+			}
+		}
+		callback.invoke(null, asWritableArray());
+	}
+
+	private WritableArray asWritableArray() {
+		WritableArray results = Arguments.createArray();
+		for (int i = 0; i < operations.size(); i++) {
+			WritableMap result = Arguments.createMap();
+			if (errors[i] != null) {
+				result.putString("status", "error");
+				result.putString("error", errors[i]);
+				Log.d(BleManager.LOG_TAG, "Transaction operation " + i + " failed: " + errors[i]);
+			} else {
+				result.putString("status", "ok");
+				if (values[i] instanceof String) {
+					result.putString("value", (String) values[i]);
+				} else if (values[i] instanceof WritableArray) {
+					result.putArray("value", (WritableArray) values[i]);
+				}
+			}
+			results.pushMap(result);
+		}
+		return results;
+	}
+
+	private static class Operation {
+		private final String type;
+		private final UUID serviceUUID;
+		private final UUID characteristicUUID;
+		private UUID descriptorUUID;
+		private byte[] data;
+		private Integer maxByteSize;
+		private Integer queueSleepTime;
+
+		Operation(ReadableMap operation) {
+			type = operation.hasKey("type") ? operation.getString("type") : null;
+			if (!operation.hasKey("service") || !operation.hasKey("characteristic")) {
+				throw new IllegalArgumentException("Missing service or characteristic");
+			}
+			serviceUUID = UUIDHelper.uuidFromString(operation.getString("service"));
+			characteristicUUID = UUIDHelper.uuidFromString(operation.getString("characteristic"));
+
+			boolean descriptor = "readDescriptor".equals(type) || "writeDescriptor".equals(type);
+			boolean write = "write".equals(type) || "writeWithoutResponse".equals(type) || "writeDescriptor".equals(type);
+			if (!descriptor && !write && !"read".equals(type) && !"startNotification".equals(type) && !"stopNotification".equals(type)) {
+				throw new IllegalArgumentException("Unknown type " + type);
+			}
+			if (descriptor) {
+				if (!operation.hasKey("descriptor")) {
+					throw new IllegalArgumentException("Missing descriptor");
+				}
+				descriptorUUID = UUIDHelper.uuidFromString(operation.getString("descriptor"));
+			}
+			if (write) {
+				if (!operation.hasKey("data")) {
+					throw new IllegalArgumentException("Missing data");
+				}
+				data = ByteEncoding.get().decode(operation.getArray("data"));
+				if (operation.hasKey("maxByteSize")) {
+					maxByteSize = operation.getInt("maxByteSize");
+				}
+				if (operation.hasKey("queueSleepTime")) {
+					queueSleepTime = operation.getInt("queueSleepTime");
+				}
+			}
+		}
+
+		void enqueue(Peripheral peripheral, Callback callback) {
+			switch (type) {
+				case "read":
+					peripheral.read(serviceUUID, characteristicUUID, callback);
+					break;
+				case "write":
+					peripheral.write(serviceUUID, characteristicUUID, data, maxByteSize, null, callback, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+					break;
+				case "writeWithoutResponse":
+					peripheral.write(serviceUUID, characteristicUUID, data, maxByteSize, queueSleepTime, callback, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+					break;
+				case "readDescriptor":
+					peripheral.readDescriptor(serviceUUID, characteristicUUID, descriptorUUID, callback);
+					break;
+				case "writeDescriptor":
+					peripheral.writeDescriptor(serviceUUID, characteristicUUID, descriptorUUID, data, maxByteSize, queueSleepTime, callback);
+					break;
+				case "startNotification":
+					peripheral.registerNotify(serviceUUID, characteristicUUID, callback);
+					break;
+				case "stopNotification":
+					peripheral.removeNotify(serviceUUID, characteristicUUID, callback);
+					break;
+			}
+		}
+	}
+}
@@ -1,33 +1,107 @@
 package it.innove;
 
+import java.util.Map;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class UUIDHelper {
 
 	// base UUID used to build 128 bit Bluetooth UUIDs
 	public static final String UUID_BASE = "0000XXXX-0000-1000-8000-00805f9b34fb";
 
+	// the bits of the base UUID around the 16 bit value
+	private static final long BASE_MOST_SIG_BITS = 0x0000000000001000L;
+	private static final long BASE_LEAST_SIG_BITS = 0x800000805f9b34fbL;
+
+	// the strings are interned for the UUIDs seen so far, a scan can find many random UUIDs so the tables are bounded
+	private static final int MAX_CACHE_SIZE = 1024;
+	private static final Map<String, UUID> uuids = new ConcurrentHashMap<>();
+	private static final Map<UUID, String> shortStrings = new ConcurrentHashMap<>();
+	private static final Map<UUID, String> longStrings = new ConcurrentHashMap<>();
+	private static final Map<UUID, Map<UUID, String>> attributeKeys = new ConcurrentHashMap<>();
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
 	// handle 16 and 128 bit UUIDs
 	public static UUID uuidFromString(String uuid) {
+		UUID cached = uuids.get(uuid);
+		if (cached != null) {
+			return cached;
+		}
 
+		UUID parsed;
 		if (uuid.length() == 4) {
-			uuid = UUID_BASE.replace("XXXX", uuid);
+			parsed = new UUID(BASE_MOST_SIG_BITS | (parseShort(uuid) << 32), BASE_LEAST_SIG_BITS);
+		} else {
+			parsed = UUID.fromString(uuid);
 		}
-		return UUID.fromString(uuid);
+		put(uuids, uuid, parsed);
+		return parsed;
+	}
+
+	private static long parseShort(String uuid) {
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(uuid.charAt(i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("Invalid UUID string: " + uuid);
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	public static boolean is16BitUUID(UUID uuid) {
+		return uuid.getLeastSignificantBits() == BASE_LEAST_SIG_BITS
+				&& (uuid.getMostSignificantBits() & 0xFFFF0000FFFFFFFFL) == BASE_MOST_SIG_BITS;
 	}
 
 	// return 16 bit UUIDs where possible
 	public static String uuidToString(UUID uuid) {
-		String longUUID = uuid.toString();
-		Pattern pattern = Pattern.compile("0000(.{4})-0000-1000-8000-00805f9b34fb", Pattern.CASE_INSENSITIVE);
-		Matcher matcher = pattern.matcher(longUUID);
-		if (matcher.matches()) {
-			// 16 bit UUID
-			return matcher.group(1);
+		String string = shortStrings.get(uuid);
+		if (string != null) {
+			return string;
+		}
+
+		if (is16BitUUID(uuid)) {
+			int value = (int) (uuid.getMostSignificantBits() >>> 32);
+			string = new String(new char[]{HEX[(value >> 12) & 0xF], HEX[(value >> 8) & 0xF], HEX[(value >> 4) & 0xF], HEX[value & 0xF]});
 		} else {
-			return longUUID;
+			string = uuidToLongString(uuid);
+		}
+		put(shortStrings, uuid, string);
+		return string;
+	}
+
+	// the 128 bit form, as in UUID.toString
+	public static String uuidToLongString(UUID uuid) {
+		String string = longStrings.get(uuid);
+		if (string == null) {
+			string = uuid.toString();
+			put(longStrings, uuid, string);
+		}
+		return string;
+	}
+
+	// the key of a characteristic in a service
+	public static String attributeKey(UUID serviceUUID, UUID characteristicUUID) {
+		Map<UUID, String> keys = attributeKeys.get(serviceUUID);
+		if (keys == null) {
+			keys = new ConcurrentHashMap<>();
+			put(attributeKeys, serviceUUID, keys);
+		}
+		String key = keys.get(characteristicUUID);
+		if (key == null) {
+			key = uuidToLongString(serviceUUID) + "|" + uuidToLongString(characteristicUUID);
+			put(keys, characteristicUUID, key);
+		}
+		return key;
+	}
+
+	private static <K, V> void put(Map<K, V> cache, K key, V value) {
+		if (cache.size() >= MAX_CACHE_SIZE) {
+			cache.clear();
 		}
+		cache.put(key, value);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+package it.innove;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisingDataTest {
+
+	// flags, 16 bit UUID 180D, tx power 4, complete local name "Polar H7", then the zero padding of the 31 bytes payload
+	private static final byte[] HEART_RATE = bytes(
+			"020106" + "03030D18" + "020A04" + "0909506F6C6172204837" + "000000000000000000000000");
+
+	// flags, 16 bit UUID FEAA, Eddystone-URL service data for https://www.google.com/
+	private static final byte[] EDDYSTONE_URL = bytes(
+			"020106" + "0303AAFE" + "0D16AAFE10EB01676F6F676C6500");
+
+	private static byte[] bytes(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void heartRateMonitor() {
+		AdvertisingData data = AdvertisingData.parse(HEART_RATE);
+		assertEquals(0x06, data.getFlags());
+		assertEquals(Arrays.asList(UUIDHelper.uuidFromString("180D")), data.getServiceUuids());
+		assertEquals(4, data.getTxPowerLevel());
+		assertEquals("Polar H7", data.getLocalName());
+		assertTrue(data.getServiceData().isEmpty());
+		assertNull(data.getManufacturerData());
+		assertNull(data.getBeacon());
+	}
+
+	@Test
+	public void eddystoneUrl() {
+		AdvertisingData data = AdvertisingData.parse(EDDYSTONE_URL);
+		UUID eddystone = UUIDHelper.uuidFromString("FEAA");
+		assertEquals(0x06, data.getFlags());
+		assertEquals(Arrays.asList(eddystone), data.getServiceUuids());
+		assertArrayEquals(bytes("10EB01676F6F676C6500"), data.getServiceData(eddystone));
+		assertEquals(Beacon.TYPE_EDDYSTONE_URL, data.getBeacon().getType());
+	}
+
+	@Test
+	public void uuid128IsLittleEndian() {
+		AdvertisingData data = AdvertisingData.parse(bytes("1107" + "FB349B5F80000080" + "00100000AAFE0000"));
+		assertEquals(Arrays.asList(UUID.fromString("0000feaa-0000-1000-8000-00805f9b34fb")), data.getServiceUuids());
+	}
+
+	@Test
+	public void missingFieldsKeepDefaults() {
+		AdvertisingData data = AdvertisingData.parse(bytes("0303AAFE"));
+		assertEquals(-1, data.getFlags());
+		assertEquals(Integer.MIN_VALUE, data.getTxPowerLevel());
+		assertNull(data.getLocalName());
+	}
+
+	@Test
+	public void truncatedStructureIsIgnored() {
+		// the name announces 9 bytes but the payload ends after 3
+		AdvertisingData data = AdvertisingData.parse(bytes("020106" + "0909506F6C"));
+		assertEquals(0x06, data.getFlags());
+		assertNull(data.getLocalName());
+	}
+
+	@Test
+	public void nullPayload() {
+		AdvertisingData data = AdvertisingData.parse(null);
+		assertEquals(-1, data.getFlags());
+		assertTrue(data.getServiceUuids().isEmpty());
+	}
+
+	@Test
+	public void parseCost() {
+		int iterations = 200000;
+		// warm up the JIT before measuring
+		for (int i = 0; i < iterations; i++) {
+			AdvertisingData.parse(HEART_RATE);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			AdvertisingData.parse(HEART_RATE);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println("AdvertisingData.parse: " + (elapsed / iterations) + " ns per advertisement");
+	}
+}
@@ -0,0 +1,126 @@
+package it.innove;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BLECommandTest {
+
+	private static BLECommand write(int length, int maxByteSize, int mtu) {
+		return write(length, maxByteSize, mtu, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, 0);
+	}
+
+	private static BLECommand write(int length, int maxByteSize, int mtu, int type, int queueSleepTime) {
+		BLECommand command = new BLECommand(null, null, null, new byte[length], type, null);
+		command.setChunking(maxByteSize, queueSleepTime);
+		command.setDefaultChunkSize(BLECommand.chunkSizeForMtu(mtu));
+		return command;
+	}
+
+	private static void assertChunks(BLECommand command, Integer... expected) {
+		List<Integer> sizes = new ArrayList<>();
+		while (command.hasNextChunk()) {
+			sizes.add(command.nextChunk().length);
+		}
+		assertEquals(Arrays.asList(expected), sizes);
+	}
+
+	@Test
+	public void chunkSizeForMtu() {
+		assertEquals(20, BLECommand.chunkSizeForMtu(23));
+		assertEquals(21, BLECommand.chunkSizeForMtu(24));
+		assertEquals(512, BLECommand.chunkSizeForMtu(515));
+		assertEquals(512, BLECommand.chunkSizeForMtu(517));
+	}
+
+	@Test
+	public void defaultMtu() {
+		assertChunks(write(20, 0, 23), 20);
+		assertChunks(write(21, 0, 23), 20, 1);
+		assertChunks(write(40, 0, 23), 20, 20);
+	}
+
+	@Test
+	public void mtuAboveDefault() {
+		assertChunks(write(21, 0, 24), 21);
+		assertChunks(write(22, 0, 24), 21, 1);
+	}
+
+	@Test
+	public void maxMtu() {
+		assertChunks(write(512, 0, 517), 512);
+		assertChunks(write(513, 0, 517), 512, 1);
+		assertChunks(write(1100, 0, 517), 512, 512, 76);
+	}
+
+	@Test
+	public void maxByteSizeOverridesMtu() {
+		assertChunks(write(30, 10, 517), 10, 10, 10);
+		assertFalse(write(20, 0, 23).isChunked());
+		assertTrue(write(21, 0, 23).isChunked());
+	}
+
+	@Test
+	public void emptyWriteIsOneChunk() {
+		assertChunks(write(0, 0, 23), 0);
+	}
+
+	@Test
+	public void pacing() {
+		assertTrue(write(100, 20, 23, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, 10).isPaced());
+		assertFalse(write(100, 20, 23, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, 0).isPaced());
+		assertFalse(write(100, 20, 23, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, 10).isPaced());
+	}
+
+	// a 64 KB write without response at MTU 185, the stack takes a chunk every 7.5 ms connection interval
+	@Test
+	public void progressOfLongWrite() {
+		BLECommand command = write(65536, 0, 185, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, 0);
+		long now = 0;
+		int chunks = 0;
+		List<Integer> progress = new ArrayList<>();
+		List<Long> progressTimes = new ArrayList<>();
+		command.nextChunk();
+		chunks++;
+		// like onCharacteristicWrite, progress before each next chunk and once at the end
+		while (command.hasNextChunk()) {
+			now = 1000 + chunks * 15 / 2;
+			if (command.reportProgress(now, false, 100)) {
+				progress.add(command.getBytesSent());
+				progressTimes.add(now);
+			}
+			command.nextChunk();
+			chunks++;
+		}
+		now = 1000 + chunks * 15 / 2;
+		assertTrue(command.reportProgress(now, true, 100));
+		progress.add(command.getBytesSent());
+		progressTimes.add(now);
+
+		assertEquals(361, chunks);
+		assertEquals(65536, (int) progress.get(progress.size() - 1));
+		for (int i = 1; i < progress.size(); i++) {
+			assertTrue(progress.get(i) > progress.get(i - 1));
+			if (i < progress.size() - 1) {
+				assertTrue(progressTimes.get(i) - progressTimes.get(i - 1) >= 100);
+			}
+		}
+		// about 2.7 s of transfer, one event every 100 ms instead of one per chunk
+		assertTrue(progress.size() >= 20 && progress.size() <= 30);
+	}
+
+	@Test
+	public void noProgressForSingleChunk() {
+		BLECommand command = write(20, 0, 23);
+		command.nextChunk();
+		assertFalse(command.reportProgress(1000, true, 100));
+	}
+}
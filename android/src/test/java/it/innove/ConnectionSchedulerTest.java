@@ -0,0 +1,83 @@
+package it.innove;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionSchedulerTest {
+
+	private static long sequence = 0;
+
+	private static ConnectionScheduler.Attempt attempt(String address, int priority) {
+		return new ConnectionScheduler.Attempt(null, address, null, priority, 0, sequence++, 0);
+	}
+
+	private static List<String> drain(PriorityQueue<ConnectionScheduler.Attempt> queue) {
+		List<String> addresses = new ArrayList<>();
+		while (!queue.isEmpty()) {
+			addresses.add(queue.poll().getAddress());
+		}
+		return addresses;
+	}
+
+	private static int priority(String address) {
+		return Integer.parseInt(address.substring(0, address.indexOf(':')));
+	}
+
+	@Test
+	public void higherPriorityFirst() {
+		PriorityQueue<ConnectionScheduler.Attempt> queue = new PriorityQueue<>(11, ConnectionScheduler.ORDER);
+		queue.add(attempt("low", -1));
+		queue.add(attempt("normal", 0));
+		queue.add(attempt("high", 5));
+		assertEquals(Arrays.asList("high", "normal", "low"), drain(queue));
+	}
+
+	@Test
+	public void samePriorityInRequestOrder() {
+		PriorityQueue<ConnectionScheduler.Attempt> queue = new PriorityQueue<>(11, ConnectionScheduler.ORDER);
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			queue.add(attempt("P" + i, 0));
+			expected.add("P" + i);
+		}
+		assertEquals(expected, drain(queue));
+	}
+
+	// attempts requested with mixed priorities, some started while others are still requested like when slots free up
+	@Test
+	public void mixedPrioritiesKeepRequestOrder() {
+		PriorityQueue<ConnectionScheduler.Attempt> queue = new PriorityQueue<>(11, ConnectionScheduler.ORDER);
+		Random random = new Random(42);
+		List<String> started = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			int priority = random.nextInt(4);
+			queue.add(attempt(priority + ":" + i, priority));
+			if (i % 3 == 0) {
+				String next = queue.poll().getAddress();
+				for (ConnectionScheduler.Attempt waiting : queue) {
+					assertTrue(priority(waiting.getAddress()) <= priority(next));
+				}
+				started.add(next);
+			}
+		}
+		started.addAll(drain(queue));
+		assertEquals(2000, started.size());
+
+		// every priority is started in request order
+		int[] lastIndex = {-1, -1, -1, -1};
+		for (String address : started) {
+			int priority = priority(address);
+			int index = Integer.parseInt(address.substring(address.indexOf(':') + 1));
+			assertTrue(index > lastIndex[priority]);
+			lastIndex[priority] = index;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package it.innove;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameAssemblerTest {
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void framesSplitOverNotifications() {
+		FrameAssembler assembler = FrameAssembler.lengthPrefixed(2, true, false, false);
+		assertTrue(assembler.append(bytes(3, 0, 1)).isEmpty());
+		List<byte[]> frames = assembler.append(bytes(2, 3, 1, 0, 9));
+		assertEquals(2, frames.size());
+		assertArrayEquals(bytes(1, 2, 3), frames.get(0));
+		assertArrayEquals(bytes(9), frames.get(1));
+		assertEquals(0, assembler.getDiscarded());
+	}
+
+	@Test
+	public void corruptHeaderIsDiscarded() {
+		// the length includes the 2 bytes header, 1 is shorter than the header itself
+		FrameAssembler assembler = FrameAssembler.lengthPrefixed(2, true, true, false);
+		List<byte[]> frames = assembler.append(bytes(1, 0, 4, 0, 7, 8));
+		assertEquals(1, frames.size());
+		assertArrayEquals(bytes(7, 8), frames.get(0));
+		assertEquals(2, assembler.getDiscarded());
+	}
+
+	@Test
+	public void corruptHeaderAloneEmitsNothing() {
+		FrameAssembler assembler = FrameAssembler.lengthPrefixed(1, true, true, true);
+		assertTrue(assembler.append(bytes(0)).isEmpty());
+		assertEquals(1, assembler.getDiscarded());
+		assertArrayEquals(bytes(2, 5), assembler.append(bytes(2, 5)).get(0));
+	}
+
+	@Test
+	public void emptyFrameIsValid() {
+		FrameAssembler assembler = FrameAssembler.lengthPrefixed(2, true, true, false);
+		List<byte[]> frames = assembler.append(bytes(2, 0));
+		assertEquals(1, frames.size());
+		assertEquals(0, frames.get(0).length);
+		assertEquals(0, assembler.getDiscarded());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidHeaderSize() {
+		FrameAssembler.lengthPrefixed(3, true, false, false);
+	}
+}
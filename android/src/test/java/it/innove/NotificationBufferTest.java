@@ -0,0 +1,170 @@
+package it.innove;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationBufferTest {
+
+	private static void add(NotificationBuffer buffer, int from, int to) {
+		for (int i = from; i <= to; i++) {
+			buffer.add(new byte[]{(byte) i}, i);
+		}
+	}
+
+	private static void assertBatch(NotificationBuffer.Batch batch, long dropped, int... expected) {
+		assertEquals(expected.length, batch.values.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], batch.values[i][0]);
+			assertEquals(expected[i], batch.timestamps[i]);
+		}
+		assertEquals(dropped, batch.dropped);
+	}
+
+	@Test
+	public void unboundedKeepsEverything() {
+		NotificationBuffer buffer = new NotificationBuffer(0, NotificationBuffer.DROP_OLDEST, false);
+		add(buffer, 1, 20);
+		assertBatch(buffer.take(0, false), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20);
+		assertNull(buffer.take(0, false));
+	}
+
+	@Test
+	public void takeAtMostMaxCount() {
+		NotificationBuffer buffer = new NotificationBuffer(0, NotificationBuffer.DROP_OLDEST, false);
+		add(buffer, 1, 5);
+		assertBatch(buffer.take(2, false), 0, 1, 2);
+		assertBatch(buffer.take(2, false), 0, 3, 4);
+		assertBatch(buffer.take(2, false), 0, 5);
+	}
+
+	@Test
+	public void slowConsumerDropOldest() {
+		NotificationBuffer buffer = new NotificationBuffer(3, NotificationBuffer.DROP_OLDEST, true);
+		add(buffer, 1, 1);
+		assertBatch(buffer.take(0, false), 0, 1);
+
+		// JS has not acknowledged the first event yet
+		add(buffer, 2, 6);
+		assertTrue(buffer.isAwaitingAck());
+		assertNull(buffer.take(0, false));
+
+		assertTrue(buffer.ack());
+		NotificationBuffer.Batch batch = buffer.take(0, false);
+		assertBatch(batch, 2, 4, 5, 6);
+		assertEquals(2, batch.totalDropped);
+	}
+
+	@Test
+	public void slowConsumerDropNewest() {
+		NotificationBuffer buffer = new NotificationBuffer(3, NotificationBuffer.DROP_NEWEST, true);
+		add(buffer, 1, 1);
+		assertBatch(buffer.take(0, false), 0, 1);
+
+		add(buffer, 2, 6);
+		assertNull(buffer.take(0, false));
+		buffer.ack();
+		assertBatch(buffer.take(0, false), 2, 2, 3, 4);
+	}
+
+	@Test
+	public void slowConsumerLatest() {
+		NotificationBuffer buffer = new NotificationBuffer(10, NotificationBuffer.LATEST, true);
+		add(buffer, 1, 1);
+		assertBatch(buffer.take(0, false), 0, 1);
+
+		add(buffer, 2, 6);
+		buffer.ack();
+		assertBatch(buffer.take(0, false), 4, 6);
+	}
+
+	@Test
+	public void droppedIsReportedOnce() {
+		NotificationBuffer buffer = new NotificationBuffer(2, NotificationBuffer.DROP_OLDEST, true);
+		add(buffer, 1, 4);
+		assertBatch(buffer.take(0, false), 2, 3, 4);
+		buffer.ack();
+		add(buffer, 5, 5);
+		NotificationBuffer.Batch batch = buffer.take(0, false);
+		assertBatch(batch, 0, 5);
+		assertEquals(2, batch.totalDropped);
+	}
+
+	@Test
+	public void fastConsumerDropsNothing() {
+		NotificationBuffer buffer = new NotificationBuffer(2, NotificationBuffer.DROP_OLDEST, true);
+		for (int i = 1; i <= 10; i++) {
+			add(buffer, i, i);
+			assertBatch(buffer.take(0, false), 0, i);
+			assertFalse(buffer.ack());
+		}
+	}
+
+	@Test
+	public void forceIgnoresAck() {
+		NotificationBuffer buffer = new NotificationBuffer(3, NotificationBuffer.DROP_OLDEST, true);
+		add(buffer, 1, 1);
+		buffer.take(0, false);
+		add(buffer, 2, 3);
+		assertBatch(buffer.take(0, true), 0, 2, 3);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPolicy() {
+		new NotificationBuffer(3, "dropAll", false);
+	}
+
+	// a 200 Hz IMU batched by 10, the subscription takes a batch as soon as one is complete
+	@Test
+	public void imuBatches() {
+		NotificationBuffer buffer = new NotificationBuffer(0, NotificationBuffer.DROP_OLDEST, false);
+		int batches = 0;
+		long next = 0;
+		for (int i = 0; i < 200; i++) {
+			buffer.add(new byte[]{(byte) i}, i * 5);
+			if (buffer.hasBatch(10)) {
+				NotificationBuffer.Batch batch = buffer.take(10, false);
+				assertEquals(10, batch.values.length);
+				for (long timestamp : batch.timestamps) {
+					assertEquals(next, timestamp);
+					next += 5;
+				}
+				batches++;
+			}
+		}
+		assertEquals(20, batches);
+		assertEquals(0, buffer.size());
+		assertFalse(buffer.hasBatch(0));
+	}
+
+	@Test
+	public void batchLatency() {
+		// maxCount alone still bounds the wait of the first value
+		assertEquals(1000, NotificationSubscription.batchLatencyMs(10, 0));
+		assertEquals(50, NotificationSubscription.batchLatencyMs(10, 50));
+		assertEquals(50, NotificationSubscription.batchLatencyMs(0, 50));
+		assertEquals(0, NotificationSubscription.batchLatencyMs(1, 0));
+		assertEquals(0, NotificationSubscription.batchLatencyMs(0, 0));
+	}
+
+	@Test
+	public void batchingThroughput() {
+		NotificationBuffer buffer = new NotificationBuffer(0, NotificationBuffer.DROP_OLDEST, false);
+		byte[] value = new byte[20];
+		int values = 2000000;
+		long start = System.nanoTime();
+		long taken = 0;
+		for (int i = 0; i < values; i++) {
+			buffer.add(value, i);
+			if (buffer.hasBatch(10)) {
+				taken += buffer.take(10, false).values.length;
+			}
+		}
+		long elapsed = Math.max(System.nanoTime() - start, 1);
+		assertEquals(values, taken);
+		System.out.println("NotificationBuffer: " + (values * 1000000000L / elapsed) + " values/s in batches of 10");
+	}
+}
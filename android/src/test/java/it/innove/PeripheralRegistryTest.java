@@ -0,0 +1,222 @@
+package it.innove;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PeripheralRegistryTest {
+
+	private static class TestPeripheral implements PeripheralRegistry.Entry {
+		private final String address;
+		private final boolean connected;
+		private volatile long lastSeen;
+
+		TestPeripheral(String address, boolean connected, long lastSeen) {
+			this.address = address;
+			this.connected = connected;
+			this.lastSeen = lastSeen;
+		}
+
+		@Override
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		@Override
+		public boolean isConnectedOrConnecting() {
+			return connected;
+		}
+	}
+
+	private static List<String> addresses(List<TestPeripheral> peripherals) {
+		List<String> addresses = new ArrayList<>();
+		for (TestPeripheral peripheral : peripherals) {
+			addresses.add(peripheral.address);
+		}
+		return addresses;
+	}
+
+	private static TestPeripheral add(PeripheralRegistry<TestPeripheral> registry, String address, long lastSeen) {
+		TestPeripheral peripheral = new TestPeripheral(address, false, lastSeen);
+		assertNull(registry.putIfAbsent(address, peripheral));
+		return peripheral;
+	}
+
+	@Test
+	public void insertionOrder() {
+		PeripheralRegistry<TestPeripheral> registry = new PeripheralRegistry<>();
+		TestPeripheral a = add(registry, "A", 0);
+		add(registry, "B", 0);
+		add(registry, "C", 0);
+		assertEquals(Arrays.asList("A", "B", "C"), addresses(registry.values()));
+
+		registry.remove("B");
+		add(registry, "D", 0);
+		assertSame(a, registry.putIfAbsent("A", new TestPeripheral("A", false, 0)));
+		assertEquals(Arrays.asList("A", "C", "D"), addresses(registry.values()));
+
+		registry.put("A", new TestPeripheral("A", false, 0));
+		assertEquals(Arrays.asList("C", "D", "A"), addresses(registry.values()));
+	}
+
+	@Test
+	public void trimEvictsLeastRecentlySeen() {
+		PeripheralRegistry<TestPeripheral> registry = new PeripheralRegistry<>();
+		final List<String> evicted = new ArrayList<>();
+		registry.configure(10, 0, new PeripheralRegistry.EvictionListener<TestPeripheral>() {
+			@Override
+			public void onEvicted(TestPeripheral peripheral) {
+				evicted.add(peripheral.address);
+			}
+		});
+		registry.putIfAbsent("connected", new TestPeripheral("connected", true, 0));
+		for (int i = 1; i <= 10; i++) {
+			add(registry, "P" + i, i);
+		}
+		// trimmed to 9, the connected one is kept although it is the oldest
+		assertEquals(Arrays.asList("P1", "P2"), evicted);
+		assertEquals(9, registry.size());
+		assertEquals("connected", registry.values().get(0).address);
+	}
+
+	@Test
+	public void evictExpired() {
+		PeripheralRegistry<TestPeripheral> registry = new PeripheralRegistry<>();
+		registry.configure(0, 1000, null);
+		add(registry, "old", 0);
+		add(registry, "recent", 1500);
+		registry.putIfAbsent("connected", new TestPeripheral("connected", true, 0));
+		registry.evictExpired(2000);
+		assertEquals(Arrays.asList("recent", "connected"), addresses(registry.values()));
+	}
+
+	// scanners add and refresh peripherals while readers iterate and eviction runs, like the scan and native modules threads
+	@Test
+	public void concurrentScannersAndReaders() throws Throwable {
+		final PeripheralRegistry<TestPeripheral> registry = new PeripheralRegistry<>();
+		final int maxSize = 200;
+		final AtomicInteger evictions = new AtomicInteger();
+		registry.configure(maxSize, 50, new PeripheralRegistry.EvictionListener<TestPeripheral>() {
+			@Override
+			public void onEvicted(TestPeripheral peripheral) {
+				assertFalse(peripheral.isConnectedOrConnecting());
+				evictions.incrementAndGet();
+			}
+		});
+		final List<TestPeripheral> connected = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			TestPeripheral peripheral = new TestPeripheral("connected" + i, true, 0);
+			registry.putIfAbsent(peripheral.address, peripheral);
+			connected.add(peripheral);
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final AtomicLong clock = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+
+		for (int s = 0; s < 4; s++) {
+			final long seed = s;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					await(start);
+					while (running.get()) {
+						String address = "P" + random.nextInt(1000);
+						long now = clock.incrementAndGet();
+						TestPeripheral current = registry.putIfAbsent(address, new TestPeripheral(address, false, now));
+						if (current != null) {
+							current.lastSeen = now;
+						}
+					}
+				}
+			}));
+		}
+		for (int r = 0; r < 2; r++) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					await(start);
+					while (running.get()) {
+						List<TestPeripheral> snapshot = registry.values();
+						Set<String> seen = new HashSet<>();
+						for (TestPeripheral peripheral : snapshot) {
+							assertTrue("duplicate " + peripheral.address, seen.add(peripheral.address));
+						}
+						registry.get("P1");
+					}
+				}
+			}));
+		}
+		threads.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Random random = new Random();
+				await(start);
+				while (running.get()) {
+					registry.evictExpired(clock.get());
+					registry.remove("P" + random.nextInt(1000));
+				}
+			}
+		}));
+
+		for (Thread thread : threads) {
+			thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread thread, Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			thread.start();
+		}
+		start.countDown();
+		Thread.sleep(1000);
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		assertTrue(evictions.get() > 0);
+		List<TestPeripheral> values = registry.values();
+		assertEquals(registry.size(), values.size());
+		for (TestPeripheral peripheral : connected) {
+			assertSame(peripheral, registry.get(peripheral.address));
+		}
+		for (TestPeripheral peripheral : values) {
+			assertSame(peripheral, registry.get(peripheral.address));
+		}
+
+		// once the threads are done a new insertion trims the registry back under its bound
+		add(registry, "last", clock.incrementAndGet());
+		assertTrue(registry.size() <= maxSize);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package it.innove;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectPolicyTest {
+
+	private static ReconnectPolicy backoff(int maxAttempts, double jitter) {
+		return new ReconnectPolicy(ReconnectPolicy.BACKOFF, maxAttempts, 500, 30000, 2, jitter);
+	}
+
+	@Test
+	public void exponentialWithoutJitter() {
+		ReconnectPolicy policy = backoff(5, 0);
+		assertEquals(500, policy.delayMs(1));
+		assertEquals(1000, policy.delayMs(2));
+		assertEquals(2000, policy.delayMs(3));
+		assertEquals(16000, policy.delayMs(6));
+		// capped at maxDelayMs
+		assertEquals(30000, policy.delayMs(7));
+		assertEquals(30000, policy.delayMs(50));
+	}
+
+	@Test
+	public void jitterStaysInBounds() {
+		ReconnectPolicy policy = backoff(0, 0.5);
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		for (int i = 0; i < 10000; i++) {
+			long delay = policy.delayMs(3);
+			assertTrue(delay >= 1000 && delay <= 3000);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		// the delays spread over the range instead of repeating, so a fleet does not reconnect in step
+		assertTrue(min < 1200 && max > 2800);
+
+		for (int i = 0; i < 10000; i++) {
+			long delay = policy.delayMs(20);
+			assertTrue(delay >= 15000 && delay <= 45000);
+		}
+	}
+
+	@Test
+	public void maxAttempts() {
+		ReconnectPolicy policy = backoff(3, 0.5);
+		assertTrue(policy.canRetry(1));
+		assertTrue(policy.canRetry(3));
+		assertFalse(policy.canRetry(4));
+		assertTrue(backoff(0, 0.5).canRetry(1000));
+	}
+
+	@Test
+	public void modes() {
+		assertFalse(backoff(5, 0.5).isAutoConnect());
+		assertTrue(new ReconnectPolicy(ReconnectPolicy.AUTO_CONNECT, 5, 500, 30000, 2, 0.5).isAutoConnect());
+	}
+}
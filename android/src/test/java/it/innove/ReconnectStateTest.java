@@ -0,0 +1,60 @@
+package it.innove;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectStateTest {
+
+	@Test
+	public void reconnection() {
+		ReconnectState state = new ReconnectState();
+		assertFalse(state.isReconnecting());
+		state.start();
+		assertEquals(1, state.nextAttempt());
+		assertEquals(2, state.nextAttempt());
+		assertTrue(state.onConnected());
+		assertFalse(state.isReconnecting());
+
+		// the next drop counts its attempts from 1 again
+		state.start();
+		assertEquals(1, state.nextAttempt());
+	}
+
+	// connect is called during the backoff wait, then its attempt fails and a later one succeeds
+	@Test
+	public void connectDuringBackoff() {
+		ReconnectState state = new ReconnectState();
+		state.start();
+		assertEquals(1, state.nextAttempt());
+
+		// the new connection stops the reconnection
+		state.stop();
+		assertFalse(state.isReconnecting());
+
+		// the failed attempt schedules nothing and the peripheral is not kept as reconnecting
+		assertEquals(0, state.nextAttempt());
+		assertFalse(state.isReconnecting());
+
+		// the successful connection is not a reconnection, the notifications are not restored
+		assertFalse(state.onConnected());
+	}
+
+	@Test
+	public void giveUpAfterMaxAttempts() {
+		ReconnectPolicy policy = new ReconnectPolicy(ReconnectPolicy.BACKOFF, 3, 500, 30000, 2, 0.5);
+		ReconnectState state = new ReconnectState();
+		state.start();
+		int attempts = 0;
+		int attempt;
+		while ((attempt = state.nextAttempt()) > 0 && policy.canRetry(attempt)) {
+			attempts++;
+		}
+		state.stop();
+		assertEquals(3, attempts);
+		assertFalse(state.isReconnecting());
+		assertEquals(0, state.nextAttempt());
+	}
+}
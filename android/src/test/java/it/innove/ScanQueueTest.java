@@ -0,0 +1,104 @@
+package it.innove;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanQueueTest {
+
+	private static final int PRODUCERS = 4;
+	private static final int RESULTS = 20000;
+
+	@Test
+	public void firstAddSchedulesDrain() {
+		ScanQueue<Integer> queue = new ScanQueue<>();
+		assertTrue(queue.add(1));
+		assertFalse(queue.add(2));
+		assertEquals(2, queue.drain().size());
+		assertTrue(queue.drain().isEmpty());
+		assertTrue(queue.add(3));
+	}
+
+	// the callback threads of the stack hand results to a single scan thread, like the Handler of ScanManager
+	@Test
+	public void handOffToScanThread() throws InterruptedException {
+		final ScanQueue<int[]> queue = new ScanQueue<>();
+		final List<int[]> processed = new ArrayList<>();
+		final List<Thread> processingThreads = new ArrayList<>();
+		final AtomicInteger drains = new AtomicInteger();
+		final ExecutorService scanThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "scan");
+			}
+		});
+		final Runnable drainer = new Runnable() {
+			@Override
+			public void run() {
+				drains.incrementAndGet();
+				for (int[] result : queue.drain()) {
+					processed.add(result);
+					if (!processingThreads.contains(Thread.currentThread())) {
+						processingThreads.add(Thread.currentThread());
+					}
+				}
+			}
+		};
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < RESULTS; i++) {
+						if (queue.add(new int[]{producer, i})) {
+							scanThread.execute(drainer);
+						}
+					}
+				}
+			});
+			thread.start();
+			producers.add(thread);
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		scanThread.shutdown();
+		assertTrue(scanThread.awaitTermination(10, TimeUnit.SECONDS));
+		long elapsed = Math.max(System.nanoTime() - startTime, 1);
+		System.out.println("ScanQueue: " + (PRODUCERS * RESULTS * 1000000000L / elapsed) + " results/s, "
+				+ drains.get() + " drains for " + (PRODUCERS * RESULTS) + " results");
+
+		// nothing is lost and each callback thread keeps its order
+		assertEquals(PRODUCERS * RESULTS, processed.size());
+		int[] next = new int[PRODUCERS];
+		for (int[] result : processed) {
+			assertEquals(next[result[0]], result[1]);
+			next[result[0]]++;
+		}
+		assertEquals(1, processingThreads.size());
+		assertEquals("scan", processingThreads.get(0).getName());
+		assertTrue(drains.get() <= PRODUCERS * RESULTS);
+	}
+}
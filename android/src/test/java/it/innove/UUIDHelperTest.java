@@ -0,0 +1,86 @@
+package it.innove;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UUIDHelperTest {
+
+	private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+	private static final UUID NORDIC_UART = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+	@Test
+	public void shortUuidUsesTheBase() {
+		assertEquals(HEART_RATE, UUIDHelper.uuidFromString("180D"));
+		assertEquals(HEART_RATE, UUIDHelper.uuidFromString("180d"));
+		assertEquals(HEART_RATE, UUIDHelper.uuidFromString(HEART_RATE.toString()));
+		assertEquals(NORDIC_UART, UUIDHelper.uuidFromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidShortUuid() {
+		UUIDHelper.uuidFromString("18XD");
+	}
+
+	@Test
+	public void is16BitUUID() {
+		assertTrue(UUIDHelper.is16BitUUID(HEART_RATE));
+		assertTrue(UUIDHelper.is16BitUUID(UUID.fromString("0000ffff-0000-1000-8000-00805f9b34fb")));
+		assertFalse(UUIDHelper.is16BitUUID(NORDIC_UART));
+		// a 32 bit UUID on the base is not a 16 bit one
+		assertFalse(UUIDHelper.is16BitUUID(UUID.fromString("0001180d-0000-1000-8000-00805f9b34fb")));
+	}
+
+	@Test
+	public void toStringKeepsTheShortForm() {
+		assertEquals("180d", UUIDHelper.uuidToString(HEART_RATE));
+		assertEquals(NORDIC_UART.toString(), UUIDHelper.uuidToString(NORDIC_UART));
+		assertEquals(HEART_RATE.toString(), UUIDHelper.uuidToLongString(HEART_RATE));
+		assertEquals(HEART_RATE + "|" + NORDIC_UART, UUIDHelper.attributeKey(HEART_RATE, NORDIC_UART));
+	}
+
+	@Test
+	public void stringsAreInterned() {
+		assertSame(UUIDHelper.uuidFromString("2A37"), UUIDHelper.uuidFromString("2A37"));
+		assertSame(UUIDHelper.uuidToString(HEART_RATE), UUIDHelper.uuidToString(HEART_RATE));
+		assertSame(UUIDHelper.uuidToLongString(NORDIC_UART), UUIDHelper.uuidToLongString(NORDIC_UART));
+		assertSame(UUIDHelper.attributeKey(HEART_RATE, NORDIC_UART), UUIDHelper.attributeKey(HEART_RATE, NORDIC_UART));
+	}
+
+	// a scan full of random UUIDs clears the tables instead of growing them, the results stay correct
+	@Test
+	public void boundedCache() {
+		for (int i = 0; i < 5000; i++) {
+			UUID random = UUID.randomUUID();
+			assertEquals(random.toString(), UUIDHelper.uuidToString(random));
+			assertEquals(random, UUIDHelper.uuidFromString(random.toString()));
+		}
+		assertEquals("180d", UUIDHelper.uuidToString(HEART_RATE));
+	}
+
+	@Test
+	public void internedCost() {
+		int iterations = 1000000;
+		long sink = 0;
+		for (int i = 0; i < iterations; i++) {
+			sink += UUIDHelper.attributeKey(HEART_RATE, NORDIC_UART).length() + (HEART_RATE + "|" + NORDIC_UART).length();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += (HEART_RATE + "|" + NORDIC_UART).length();
+		}
+		long built = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += UUIDHelper.attributeKey(HEART_RATE, NORDIC_UART).length();
+		}
+		long interned = System.nanoTime() - start;
+		assertTrue(sink > 0);
+		System.out.println("UUIDHelper.attributeKey: " + (interned / iterations) + " ns interned, " + (built / iterations) + " ns built");
+	}
+}